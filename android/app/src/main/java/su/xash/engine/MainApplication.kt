@@ -5,23 +5,33 @@ import android.content.Context
 import android.os.StrictMode
 import org.acra.data.StringFormat
 import org.acra.ktx.initAcra
+import su.xash.engine.model.ImageCache
+import su.xash.engine.util.StartupTrace
 
 class MainApplication : Application() {
 	override fun attachBaseContext(base: Context?) {
 		super.attachBaseContext(base)
+		StartupTrace.attach(this)
 
-		if (!BuildConfig.DEBUG) {
-            initAcra {
-                buildConfigClass = BuildConfig::class.java
-                reportFormat = StringFormat.JSON
+		StartupTrace.section(StartupTrace.APP_INIT) {
+			if (!BuildConfig.DEBUG) {
+				initAcra {
+					buildConfigClass = BuildConfig::class.java
+					reportFormat = StringFormat.JSON
 
-//                httpSender {
-//                    uri = "http://bodis.pp.ua:5000/report"
-//                }
-            }
-		} else {
-			// enable strict mode to detect memory leaks etc.
-			StrictMode.enableDefaults();
+//					httpSender {
+//						uri = "http://bodis.pp.ua:5000/report"
+//					}
+				}
+			} else {
+				// enable strict mode to detect memory leaks etc.
+				StrictMode.enableDefaults();
+			}
 		}
 	}
+
+	override fun onTrimMemory(level: Int) {
+		super.onTrimMemory(level)
+		ImageCache.trimMemory(level)
+	}
 }
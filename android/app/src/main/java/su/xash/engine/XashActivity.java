@@ -16,6 +16,7 @@ import android.view.WindowManager;
 import org.libsdl.app.SDLActivity;
 
 import su.xash.engine.util.AndroidBug5497Workaround;
+import su.xash.engine.util.AssetIndex;
 
 import java.io.File;
 import java.util.Arrays;
@@ -89,14 +90,34 @@ public class XashActivity extends SDLActivity {
         return am;
     }
 
-    private String[] getAssetsList(boolean isEngine, String path) {
+    private AssetIndex getAssetIndex(boolean isEngine) {
+        String packageName = isEngine ? getPackageName() : getCallingPackage();
+        if (packageName == null) {
+            return null;
+        }
+
+        AssetIndex index = AssetIndex.find(packageName);
+        if (index != null) {
+            return index;
+        }
+
         AssetManager am = getAssets(isEngine);
-        try {
-            return am.list(path);
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (am == null) {
+            return null;
         }
-        return new String[]{};
+        return AssetIndex.get(this, packageName, am);
+    }
+
+    // called from filesystem/android.c
+    private String[] getAssetsList(boolean isEngine, String path) {
+        AssetIndex index = getAssetIndex(isEngine);
+        return index != null ? index.list(path) : new String[]{};
+    }
+
+    // the whole subtree in one JNI call, see filesystem/android.c
+    private String[] getAssetsTree(boolean isEngine, String path) {
+        AssetIndex index = getAssetIndex(isEngine);
+        return index != null ? index.tree(path) : new String[]{};
     }
 
     @Override
@@ -134,6 +155,13 @@ public class XashActivity extends SDLActivity {
     }
 
     private String findBestBasedir(String gamedir) {
+        // the launcher already picked one of its library roots
+        String basedir = getIntent().getStringExtra("basedir");
+        if (basedir != null && new File(basedir, gamedir).isDirectory()) {
+            Log.d(TAG, "Game found in library root: " + basedir);
+            return basedir;
+        }
+
         File internalDir = new File(getExternalFilesDir(null).getAbsolutePath() + "/" + gamedir);
         if (internalDir.exists() && internalDir.isDirectory()) {
             Log.d(TAG, "Game found in internal storage: " + internalDir.getAbsolutePath());
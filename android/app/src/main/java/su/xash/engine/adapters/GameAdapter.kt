@@ -1,28 +1,76 @@
 package su.xash.engine.adapters
 
+import android.graphics.Bitmap
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
+import android.widget.ImageView
 import androidx.navigation.findNavController
 import androidx.recyclerview.widget.DiffUtil
 import androidx.recyclerview.widget.ListAdapter
 import androidx.recyclerview.widget.RecyclerView
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.cancelChildren
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import su.xash.engine.R
 import su.xash.engine.databinding.CardGameBinding
 import su.xash.engine.model.Game
+import su.xash.engine.model.ImageCache
 import su.xash.engine.ui.library.LibraryViewModel
+import su.xash.engine.util.StartupTrace
+import java.util.concurrent.Executors
 
 
 class GameAdapter(private val libraryViewModel: LibraryViewModel) :
 	ListAdapter<Game, GameAdapter.GameViewHolder>(DiffCallback()) {
 
+	private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Main.immediate)
+	private val boundHolders = mutableSetOf<GameViewHolder>()
+	// gamedir names are unique in the list, give each one an id for the adapter's lifetime
+	private val ids = HashMap<String, Long>()
+
+	init {
+		setHasStableIds(true)
+	}
+
 	override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): GameAdapter.GameViewHolder {
 		val binding = CardGameBinding.inflate(LayoutInflater.from(parent.context), parent, false)
 		return GameViewHolder(binding)
 	}
 
 	override fun onBindViewHolder(holder: GameAdapter.GameViewHolder, position: Int) {
-		return holder.bind(getItem(position))
+		return holder.bind(getItem(position), CHANGED_ALL)
+	}
+
+	override fun onBindViewHolder(holder: GameViewHolder, position: Int, payloads: List<Any>) {
+		StartupTrace.mark(StartupTrace.FIRST_CARD)
+		// payloads of several diffs may pile up before the holder is rebound
+		val changes = payloads.fold(0) { acc, it -> acc or (it as? Int ?: CHANGED_ALL) }
+		holder.bind(getItem(position), if (payloads.isEmpty()) CHANGED_ALL else changes)
+	}
+
+	override fun getItemId(position: Int): Long {
+		return ids.getOrPut(getItem(position).basedir.name) { ids.size.toLong() }
+	}
+
+	override fun onViewAttachedToWindow(holder: GameViewHolder) {
+		holder.prioritize()
+	}
+
+	override fun onViewRecycled(holder: GameViewHolder) {
+		holder.unbind()
+	}
+
+	override fun onDetachedFromRecyclerView(recyclerView: RecyclerView) {
+		scope.coroutineContext.cancelChildren()
+		// holders of a destroyed list are never recycled, unpin their bitmaps
+		boundHolders.toList().forEach { it.unbind() }
 	}
 
 	private class DiffCallback : DiffUtil.ItemCallback<Game>() {
@@ -31,40 +79,144 @@ class GameAdapter(private val libraryViewModel: LibraryViewModel) :
 		}
 
 		override fun areContentsTheSame(oldItem: Game, newItem: Game): Boolean {
-			return oldItem.basedir.name == newItem.basedir.name
+			return oldItem.title == newItem.title && !iconChanged(oldItem, newItem) &&
+				!coverChanged(oldItem, newItem)
+		}
+
+		override fun getChangePayload(oldItem: Game, newItem: Game): Any {
+			var changes = 0
+			if (oldItem.title != newItem.title) changes = changes or CHANGED_TITLE
+			if (iconChanged(oldItem, newItem)) changes = changes or CHANGED_ICON
+			if (coverChanged(oldItem, newItem)) changes = changes or CHANGED_COVER
+			return changes
 		}
 
+		// art is only stamped when loaded, a changed gamedir or a new instance may have new art
+		private fun iconChanged(oldItem: Game, newItem: Game): Boolean {
+			return oldItem.info.icon != newItem.info.icon || oldItem.mtime != newItem.mtime ||
+				oldItem.icon.loadedKey != newItem.icon.loadedKey
+		}
+
+		private fun coverChanged(oldItem: Game, newItem: Game): Boolean {
+			return oldItem.mtime != newItem.mtime || oldItem.cover.loadedKey != newItem.cover.loadedKey
+		}
 	}
 
 	inner class GameViewHolder(val binding: CardGameBinding) :
 		RecyclerView.ViewHolder(binding.root) {
-		fun bind(game: Game) {
-			binding.apply {
-				gameTitle.text = game.title
-
-				if (game.icon != null) {
-					gameIcon.setImageBitmap(game.icon)
-				} else {
-					gameIcon.visibility = View.GONE
-				}
+		private var game: Game? = null
+		private var loadJob: Job? = null
+		// the game loadJob loads and the lane its next image goes to
+		private var loadingGame: Game? = null
+		private var lane = prefetchLane
+		private var icon: Bitmap? = null
+		private var cover: Bitmap? = null
 
-				if (game.cover != null) {
-					gameCover.setImageBitmap(game.cover)
-				} else {
-					gameCover.visibility = View.GONE
-				}
+		val isLoading get() = loadJob?.isActive == true
 
+		init {
+			binding.apply {
 				settingsButton.setOnClickListener {
+					val game = game ?: return@setOnClickListener
 					libraryViewModel.setSelectedGame(game)
 					it.findNavController()
 						.navigate(R.id.action_libraryFragment_to_gameSettingsFragment)
 				}
 
-				root.setOnClickListener { libraryViewModel.startEngine(it.context, game) }
-				launchButton.setOnClickListener {
-					libraryViewModel.startEngine(it.context, game)
+				root.setOnClickListener { view -> game?.let { libraryViewModel.startEngine(view.context, it) } }
+				launchButton.setOnClickListener { view ->
+					game?.let { libraryViewModel.startEngine(view.context, it) }
+				}
+			}
+		}
+
+		/** Binds [game], touching only the views named by the [changes] flags. */
+		fun bind(game: Game, changes: Int) {
+			this.game = game
+			boundHolders.add(this)
+
+			if (changes and CHANGED_TITLE != 0) binding.gameTitle.text = game.title
+
+			val images = changes and (CHANGED_ICON or CHANGED_COVER)
+			if (images == 0) return
+
+			if (changes and CHANGED_ICON != 0) showIcon(game.icon.acquire())
+			if (changes and CHANGED_COVER != 0) showCover(game.cover.acquire())
+			// a running load of this very game shows whatever is still missing when it's done
+			if (loadJob?.isActive == true && loadingGame === game) return
+
+			// a running load may still fetch an unchanged image, restart it for the new game
+			loadJob?.cancel()
+			if ((icon == null && !game.icon.isMissing) || (cover == null && !game.cover.isMissing)) {
+				// prefetched holders are bound before they are attached
+				load(game, if (itemView.isAttachedToWindow) visibleLane else prefetchLane)
+			}
+		}
+
+		fun prioritize() {
+			val game = loadingGame ?: return
+			if (loadJob?.isActive != true || lane === visibleLane) return
+
+			// the remaining images go to the visible lane. A decode that already runs
+			// can't be stopped, restarting would only block a visible thread on it
+			lane = visibleLane
+			if (game.icon.isLoading || game.cover.isLoading) return
+			loadJob?.cancel()
+			load(game, visibleLane)
+		}
+
+		fun unbind() {
+			loadJob?.cancel()
+			loadJob = null
+			loadingGame = null
+			game = null
+			boundHolders.remove(this)
+			showIcon(null)
+			showCover(null)
+		}
+
+		// cancelling stops the job between images, a decode in progress runs to the end and stays cached
+		private fun load(game: Game, lane: CoroutineDispatcher) {
+			this.lane = lane
+			loadingGame = game
+			loadJob = scope.launch {
+				withContext(this@GameViewHolder.lane) { game.icon.load() }
+				if (icon == null) showIcon(game.icon.acquire())
+				withContext(this@GameViewHolder.lane) { game.cover.load() }
+				if (cover == null) showCover(game.cover.acquire())
+
+				if (boundHolders.none { it.isLoading && it !== this@GameViewHolder }) {
+					StartupTrace.mark(StartupTrace.COVERS_READY)
 				}
 			}
 		}
+
+		private fun showIcon(bitmap: Bitmap?) {
+			icon?.let { ImageCache.release(it) }
+			icon = bitmap
+			show(binding.gameIcon, bitmap)
+		}
+
+		private fun showCover(bitmap: Bitmap?) {
+			cover?.let { ImageCache.release(it) }
+			cover = bitmap
+			show(binding.gameCover, bitmap)
+		}
+
+		private fun show(view: ImageView, bitmap: Bitmap?) {
+			view.setImageBitmap(bitmap)
+			view.visibility = if (bitmap != null) View.VISIBLE else View.GONE
+		}
+	}
+
+	companion object {
+		private const val CHANGED_TITLE = 1
+		private const val CHANGED_ICON = 2
+		private const val CHANGED_COVER = 4
+		private const val CHANGED_ALL = CHANGED_TITLE or CHANGED_ICON or CHANGED_COVER
+
+		// cards on screen are decoded first, RecyclerView prefetch gets a single thread
+		private val visibleLane = Executors.newFixedThreadPool(2).asCoroutineDispatcher()
+		private val prefetchLane = Executors.newSingleThreadExecutor().asCoroutineDispatcher()
 	}
 }
@@ -1,90 +1,148 @@
 package su.xash.engine.model
 
 import android.graphics.Bitmap
-import android.graphics.Canvas
+import android.util.Log
+import su.xash.engine.util.GameFiles
 import su.xash.engine.util.TGAReader
 import java.io.File
-import java.io.FileInputStream
+import java.io.IOException
 import java.util.Scanner
 
 
 object BackgroundBitmap {
+	private const val TAG = "BackgroundBitmap"
 	private const val BACKGROUND_ROWS = 3
 	private const val BACKGROUND_COLUMNS = 4
 	private const val BACKGROUND_WIDTH = 800
 	private const val BACKGROUND_HEIGHT = 600
 
-	fun createBackground(file: File): Bitmap {
-		var bitmap =
-			Bitmap.createBitmap(BACKGROUND_WIDTH, BACKGROUND_HEIGHT, Bitmap.Config.ARGB_8888)
-		var canvas = Canvas(bitmap)
-		var x: Int
-		var y = 0
-		var width: Int
-		var height = 0
+	private class Tile(val path: String, val x: Int, val y: Int)
+	private class Layout(val width: Int, val height: Int, val tiles: List<Tile>)
+
+	/**
+	 * Composes the menu background of [file]. When [reqWidth] and [reqHeight]
+	 * are given, tiles are decoded subsampled so the result is only as large
+	 * as needed to cover that size.
+	 */
+	fun createBackground(file: File, reqWidth: Int = 0, reqHeight: Int = 0): Bitmap {
+		val files = GameFiles.of(file)
+		val layoutPath = findLayout(files)
+		val layout = if (layoutPath != null) readLayout(files, layoutPath) else probeGrid(files)
 
-		val resourceFolder = File(file, "resource")
-		var bgLayout = File(resourceFolder, "HD_BackgroundLayout.txt")
-		if (!bgLayout.exists()) {
-			bgLayout = File(resourceFolder, "BackgroundLayout.txt")
+		val composer = Composer(layout.width, layout.height, reqWidth, reqHeight)
+		layout.tiles.forEach { composer.draw(files, it.path, it.x, it.y) }
+		return composer.toBitmap()
+	}
+
+	/**
+	 * Files the background of [file] is built from, the layout file first if
+	 * there is one, followed by the archives of the gamedir. Missing loose
+	 * files are listed too, so their appearance can be noticed. Nothing is
+	 * decoded, so this is cheap enough to check whether a cached cover is
+	 * still up to date.
+	 */
+	fun sources(file: File): List<File> {
+		val files = GameFiles.of(file)
+		val layoutPath = findLayout(files)
+		val paths = if (layoutPath != null) {
+			listOf(layoutPath) + readLayout(files, layoutPath, false).tiles.map { it.path }
+		} else {
+			gridPaths().flatten()
 		}
+		return paths.map { files.find(it) ?: File(file, it) }.distinct() + files.archives
+	}
 
-		if (!bgLayout.exists()) {
-			val dir = File(resourceFolder, "background")
-			for (i in 0 until BACKGROUND_ROWS) {
-				x = 0
-				for (j in 0 until BACKGROUND_COLUMNS) {
-					val filename = "${BACKGROUND_WIDTH}_${i + 1}_${'a' + j}_loading.tga"
-					val bmpFile = File(dir, filename)
-					val bmpImage = loadTga(bmpFile)
+	private fun findLayout(files: GameFiles): String? {
+		return listOf("resource/HD_BackgroundLayout.txt", "resource/BackgroundLayout.txt")
+			.firstOrNull { files.exists(it) }
+	}
 
-					canvas.drawBitmap(bmpImage, x.toFloat(), y.toFloat(), null)
-					x += bmpImage.width
-					height = bmpImage.height
+	private fun gridPaths(): List<List<String>> {
+		return List(BACKGROUND_ROWS) { i ->
+			List(BACKGROUND_COLUMNS) { j ->
+				"resource/background/${BACKGROUND_WIDTH}_${i + 1}_${'a' + j}_loading.tga"
+			}
+		}
+	}
 
-				}
-				y += height
+	// validates and measures the whole grid before decoding any pixels
+	private fun probeGrid(files: GameFiles): Layout {
+		val grid = gridPaths().map { row -> row.map { it to TGAReader.probe(files.read(it)) } }
+		val tiles = mutableListOf<Tile>()
+		var y = 0
+		for (row in grid) {
+			var x = 0
+			for ((path, info) in row) {
+				tiles.add(Tile(path, x, y))
+				x += info.width
 			}
-			return bitmap
+			y += row.maxOf { it.second.height }
 		}
+		return Layout(grid.maxOf { row -> row.sumOf { it.second.width } }, y, tiles)
+	}
 
-		FileInputStream(bgLayout).use { inputStream ->
+	private fun readLayout(files: GameFiles, bgLayout: String, probe: Boolean = true): Layout {
+		var width = BACKGROUND_WIDTH
+		var height = BACKGROUND_HEIGHT
+		var tiles = mutableListOf<Tile>()
+
+		files.open(bgLayout).use { inputStream ->
 			Scanner(inputStream).use { scanner ->
 				while (scanner.hasNext()) {
 					when (val str = scanner.next()) {
 						"resolution" -> {
 							width = scanner.nextInt()
 							height = scanner.nextInt()
-							bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
-							canvas = Canvas(bitmap)
+							tiles = mutableListOf()
 						}
 
 						else -> {
-							var bmpFile = file
-							str.split("/").forEach { bmpFile = File(bmpFile, it) }
 							//skip
 							scanner.next()
-							x = scanner.nextInt()
-							y = scanner.nextInt()
-							val bmp = loadTga(bmpFile)
-							canvas.drawBitmap(bmp, x.toFloat(), y.toFloat(), null)
+							val x = scanner.nextInt()
+							val y = scanner.nextInt()
+
+							// a missing or broken tile leaves a hole instead of losing the cover
+							try {
+								if (probe) TGAReader.probe(files.read(str))
+							} catch (e: IOException) {
+								Log.w(TAG, "Skipping background tile $str", e)
+								continue
+							}
+
+							tiles.add(Tile(str, x, y))
 						}
 					}
 				}
 			}
 		}
-		return bitmap
+		return Layout(width, height, tiles)
 	}
 
-	private fun loadTga(file: File): Bitmap {
-		FileInputStream(file).use {
-			val buffer = it.readBytes()
-			val pixels = TGAReader.read(buffer, TGAReader.ARGB)
+	// Decodes every tile straight into its rectangle of one pixel array, parts
+	// outside the background are clipped by the decoder. The Bitmap is only
+	// created once all tiles are in place.
+	private class Composer(fullWidth: Int, fullHeight: Int, reqWidth: Int, reqHeight: Int) {
+		private val scale = TGAReader.sampleSizeFor(fullWidth, fullHeight, reqWidth, reqHeight)
+		private val decoder = TGAReader.Decoder().also {
+			it.sampleSize = scale
+			it.boxFilter = true
+		}
+		private val width = (fullWidth + scale - 1) / scale
+		private val height = (fullHeight + scale - 1) / scale
+		private val pixels = IntArray(width * height)
 
-			val width = TGAReader.getWidth(buffer)
-			val height = TGAReader.getHeight(buffer)
+		fun draw(files: GameFiles, path: String, x: Int, y: Int) {
+			// loose and stored tiles are mapped, the page cache holds them instead of the Java heap
+			decoder.open(files.read(path))
+			decoder.read(TGAReader.ARGB, pixels, 0, width, width, height, x / scale, y / scale)
+		}
 
-			return Bitmap.createBitmap(pixels, 0, width, width, height, Bitmap.Config.ARGB_8888)
+		fun toBitmap(): Bitmap {
+			return ImageCache.obtain(width, height, Bitmap.Config.ARGB_8888).apply {
+				setHasAlpha(true)
+				setPixels(pixels, 0, width, 0, 0, width, height)
+			}
 		}
 	}
 }
@@ -0,0 +1,305 @@
+package su.xash.engine.model
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.util.Log
+import java.io.ByteArrayInputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Persistent cache of composed library covers.
+ *
+ * Covers are kept as RGB565 in one append-only atlas file that is memory
+ * mapped for reading, next to a small index keyed by gamedir path. The index
+ * is a log too, storing a cover appends one record and the last record of a
+ * path wins. An entry stays valid while the path, mtime and size of the
+ * background layout and all of its tiles, and the requested size rounded to
+ * [SIZE_STEP], are unchanged. An unchanged library therefore shows its
+ * covers without decoding a single TGA.
+ * Backgrounds that fail to build are cached too, as empty entries.
+ */
+object CoverCache {
+	private const val TAG = "CoverCache"
+	private const val INDEX_MAGIC = 0x58434F56 // XCOV
+	private const val INDEX_VERSION = 2
+	private const val INDEX_FILE = "covers.idx"
+	private const val ATLAS_FILE = "covers.bin"
+	private const val COMPACT_THRESHOLD = 4L * 1024 * 1024
+	// superseded index records tolerated before the index is rewritten
+	private const val STALE_RECORDS = 256
+	private const val SIZE_STEP = 256
+	private val FNV_OFFSET = 0xCBF29CE484222325uL.toLong()
+	private const val FNV_PRIME = 0x100000001B3L
+
+	private class Entry(val signature: Long, val offset: Long, val width: Int, val height: Int) {
+		val size get() = width.toLong() * height * 2
+	}
+
+	private var dir: File? = null
+	private val entries = HashMap<String, Entry>()
+	private var atlasLength = 0L
+	private var deadBytes = 0L
+	private var records = 0
+	private var mapped: MappedByteBuffer? = null
+
+	/**
+	 * Cover of [basedir] covering at least [width] x [height] pixels. The size
+	 * is rounded up to [SIZE_STEP], so small changes like a resized window
+	 * keep using the cached cover.
+	 */
+	fun getCover(ctx: Context, basedir: File, width: Int, height: Int): Bitmap? {
+		val key = basedir.absolutePath
+		val reqWidth = bucket(width)
+		val reqHeight = bucket(height)
+		val signature = signature(basedir, reqWidth, reqHeight)
+
+		try {
+			synchronized(this) {
+				open(ctx)
+				val entry = entries[key]
+				if (entry != null && entry.signature == signature) {
+					return read(entry)
+				}
+			}
+		} catch (e: IOException) {
+			Log.w(TAG, "Cover cache unavailable", e)
+		}
+
+		// decode outside of the lock, scans may build several covers at once
+		val cover = try {
+			BackgroundBitmap.createBackground(basedir, reqWidth, reqHeight)
+		} catch (e: Exception) {
+			Log.w(TAG, "Failed to build cover of $key", e)
+			null
+		}
+		val packed = cover?.let { pack(it) }
+		cover?.let { ImageCache.recycle(it) }
+
+		try {
+			synchronized(this) {
+				store(key, signature, packed)
+			}
+		} catch (e: IOException) {
+			Log.w(TAG, "Failed to cache cover of $key", e)
+		}
+		return packed
+	}
+
+	private fun bucket(size: Int) = (size + SIZE_STEP - 1) / SIZE_STEP * SIZE_STEP
+
+	/**
+	 * Digest of the path, mtime and size of every file the cover of [basedir]
+	 * is built from. Only reads the layout and archive directories, no pixels.
+	 */
+	fun stamp(basedir: File): Long {
+		var hash = FNV_OFFSET
+		BackgroundBitmap.sources(basedir).forEach {
+			hash = mix(hash, it.path.hashCode().toLong())
+			hash = mix(hash, it.lastModified())
+			hash = mix(hash, it.length())
+		}
+		return hash
+	}
+
+	private fun mix(hash: Long, value: Long) = (hash xor value) * FNV_PRIME
+
+	private fun signature(basedir: File, reqWidth: Int, reqHeight: Int): Long {
+		var hash = mix(FNV_OFFSET, INDEX_VERSION.toLong())
+		hash = mix(hash, reqWidth.toLong())
+		hash = mix(hash, reqHeight.toLong())
+		return mix(hash, stamp(basedir))
+	}
+
+	private fun open(ctx: Context) {
+		if (dir != null) return
+		val cacheDir = File(ctx.cacheDir, "covers")
+		cacheDir.mkdirs()
+		dir = cacheDir
+
+		try {
+			loadIndex(cacheDir)
+		} catch (e: IOException) {
+			Log.w(TAG, "Discarding cover cache", e)
+			entries.clear()
+			atlasLength = 0
+			deadBytes = 0
+			records = 0
+			File(cacheDir, ATLAS_FILE).delete()
+			File(cacheDir, INDEX_FILE).delete()
+		}
+	}
+
+	private fun loadIndex(cacheDir: File) {
+		val index = File(cacheDir, INDEX_FILE)
+		val atlas = File(cacheDir, ATLAS_FILE)
+		if (!index.exists()) {
+			atlas.delete()
+			return
+		}
+
+		val data = index.readBytes()
+		val bytes = ByteArrayInputStream(data)
+		val input = DataInputStream(bytes)
+		if (input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION) {
+			throw IOException("Unknown index format")
+		}
+
+		var valid = data.size - bytes.available()
+		try {
+			while (bytes.available() > 0) {
+				val key = input.readUTF()
+				val entry = Entry(input.readLong(), input.readLong(), input.readInt(), input.readInt())
+				entries[key] = entry
+				atlasLength = maxOf(atlasLength, entry.offset + entry.size)
+				records++
+				valid = data.size - bytes.available()
+			}
+		} catch (e: EOFException) {
+			// a crash while appending tears the last record only
+			RandomAccessFile(index, "rw").use { it.setLength(valid.toLong()) }
+		}
+		deadBytes = atlasLength - entries.values.sumOf { it.size }
+
+		// covers appended after the last index record are unreferenced, drop them
+		val length = atlas.length()
+		if (length < atlasLength) {
+			throw IOException("Atlas is shorter than its index")
+		} else if (length > atlasLength) {
+			RandomAccessFile(atlas, "rw").use { it.setLength(atlasLength) }
+		}
+	}
+
+	// writes the live entries only, dropping superseded records
+	private fun saveIndex() {
+		val cacheDir = dir!!
+		val tmp = File(cacheDir, "$INDEX_FILE.tmp")
+		DataOutputStream(FileOutputStream(tmp).buffered()).use {
+			it.writeInt(INDEX_MAGIC)
+			it.writeInt(INDEX_VERSION)
+			entries.forEach { (key, entry) -> writeRecord(it, key, entry) }
+		}
+		if (!tmp.renameTo(File(cacheDir, INDEX_FILE))) {
+			throw IOException("Failed to replace $INDEX_FILE")
+		}
+		records = entries.size
+	}
+
+	private fun appendRecord(key: String, entry: Entry) {
+		val index = File(dir, INDEX_FILE)
+		if (!index.exists()) {
+			saveIndex()
+			return
+		}
+
+		DataOutputStream(FileOutputStream(index, true).buffered()).use { writeRecord(it, key, entry) }
+		records++
+	}
+
+	private fun writeRecord(out: DataOutputStream, key: String, entry: Entry) {
+		out.writeUTF(key)
+		out.writeLong(entry.signature)
+		out.writeLong(entry.offset)
+		out.writeInt(entry.width)
+		out.writeInt(entry.height)
+	}
+
+	private fun read(entry: Entry): Bitmap? {
+		if (entry.width == 0) return null
+
+		var buffer = mapped
+		if (buffer == null || buffer.capacity() < entry.offset + entry.size) {
+			buffer = RandomAccessFile(File(dir, ATLAS_FILE), "r").use {
+				it.channel.map(FileChannel.MapMode.READ_ONLY, 0, it.length())
+			}
+			mapped = buffer
+		}
+
+		val region = buffer!!.duplicate()
+		(region as Buffer).limit((entry.offset + entry.size).toInt())
+		(region as Buffer).position(entry.offset.toInt())
+		return ImageCache.obtain(entry.width, entry.height, Bitmap.Config.RGB_565).apply {
+			copyPixelsFromBuffer(region)
+		}
+	}
+
+	// RGB565 halves the memory of a cover, transparent holes turn black
+	private fun pack(cover: Bitmap): Bitmap {
+		val packed = ImageCache.obtain(cover.width, cover.height, Bitmap.Config.RGB_565)
+		packed.eraseColor(Color.BLACK)
+		Canvas(packed).drawBitmap(cover, 0f, 0f, null)
+		return packed
+	}
+
+	private fun store(key: String, signature: Long, cover: Bitmap?) {
+		entries[key]?.let { deadBytes += it.size }
+
+		val entry = if (cover == null) {
+			Entry(signature, 0, 0, 0)
+		} else {
+			val pixels = ByteBuffer.allocate(cover.byteCount)
+			cover.copyPixelsToBuffer(pixels)
+			(pixels as Buffer).flip()
+
+			RandomAccessFile(File(dir, ATLAS_FILE), "rw").use {
+				it.channel.write(pixels, atlasLength)
+			}
+			Entry(signature, atlasLength, cover.width, cover.height).also { atlasLength += cover.byteCount }
+		}
+		entries[key] = entry
+
+		if (deadBytes > COMPACT_THRESHOLD && deadBytes > atlasLength / 2) {
+			compact()
+			saveIndex()
+		} else if (records - entries.size >= STALE_RECORDS) {
+			saveIndex()
+		} else {
+			appendRecord(key, entry)
+		}
+	}
+
+	// rewrites the atlas with live covers only
+	private fun compact() {
+		val cacheDir = dir!!
+		val atlas = File(cacheDir, ATLAS_FILE)
+		val tmp = File(cacheDir, "$ATLAS_FILE.tmp")
+		val moved = HashMap<String, Entry>()
+		var length = 0L
+
+		RandomAccessFile(atlas, "r").use { src ->
+			RandomAccessFile(tmp, "rw").use { dst ->
+				dst.setLength(0)
+				entries.forEach { (key, entry) ->
+					if (entry.width != 0) {
+						var done = 0L
+						while (done < entry.size) {
+							val n = src.channel.transferTo(entry.offset + done, entry.size - done, dst.channel)
+							if (n <= 0) throw IOException("Atlas is truncated")
+							done += n
+						}
+					}
+					moved[key] = Entry(entry.signature, length, entry.width, entry.height)
+					length += entry.size
+				}
+			}
+		}
+		if (!tmp.renameTo(atlas)) {
+			throw IOException("Failed to replace $ATLAS_FILE")
+		}
+		entries.putAll(moved)
+		atlasLength = length
+		deadBytes = 0
+		mapped = null
+	}
+}
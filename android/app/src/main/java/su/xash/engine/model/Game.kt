@@ -7,69 +7,122 @@ import android.content.pm.PackageManager
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import android.net.Uri
+import android.util.Log
 import su.xash.engine.XashActivity
+import su.xash.engine.util.GameFiles
+import su.xash.engine.util.IcoReader
 import java.io.File
-import java.io.FileInputStream
+import java.io.IOException
+
+
+/**
+ * A game in the library. [mtime] is the mtime of [basedir] as recorded by
+ * [LibraryIndex], which creates a new instance whenever the gamedir changes.
+ */
+class Game(val ctx: Context, val basedir: File, val info: GameInfo, val mtime: Long) {
+	val title get() = info.title
+
+	// stamped on the loader thread when decoded, so edited art gets new cache entries
+	val icon = Image("icon:${basedir.absolutePath}", { iconStamp() }) { decodeIcon() }
+	val cover = Image("cover:${basedir.absolutePath}", { coverStamp() }) {
+		// library cards are screen wide and 128dp tall, don't decode more than that.
+		// The longer side keeps the cached cover valid across rotations
+		val metrics = ctx.resources.displayMetrics
+		CoverCache.getCover(
+			ctx, basedir, maxOf(metrics.widthPixels, metrics.heightPixels),
+			(COVER_HEIGHT_DP * metrics.density).toInt()
+		)
+	}
 
+	/** Per-game settings, nothing is loaded until the first read. */
+	val settings = GameSettings.of(ctx, basedir.name)
 
-class Game(val ctx: Context, val basedir: File) {
-	private var iconName = "game.ico"
-	var title = "Unknown Game"
-	var icon: Bitmap? = null
-	var cover: Bitmap? = null
+	/** When the game was last launched, 0 if never. */
+	val lastPlayed get() = settings.getLong(GameSettings.LAST_PLAYED, 0L)
 
-	private val pref = ctx.getSharedPreferences(basedir.name, Context.MODE_PRIVATE)
+	// the icon may be replaced without touching the gamedir, e.g. inside an archive
+	private fun iconStamp(): String {
+		val file = GameFiles.of(basedir).find(info.icon) ?: return "none"
+		return "${file.path}:${file.lastModified()}:${file.length()}"
+	}
 
-	init {
-		val gameInfo = File(basedir, "gameinfo.txt")
-		if (gameInfo.exists()) {
-			parseGameInfo(gameInfo)
-		} else {
-			val libListGam = File(basedir, "liblist.gam")
-			if (libListGam.exists()) parseGameInfo(libListGam)
+	// tiles live in resource/background, editing them doesn't touch the gamedir
+	private fun coverStamp(): Long {
+		return try {
+			CoverCache.stamp(basedir)
+		} catch (e: Exception) {
+			// a broken layout fails again when the cover is decoded, report it there
+			0L
 		}
+	}
 
-		val iconFile = File(basedir, iconName)
-		if (iconFile.exists()) {
-			icon = BitmapFactory.decodeFile(iconFile.path)
+	/**
+	 * Whether the files of an image that was already loaded changed since.
+	 * Touches the disk, images that were never loaded are not checked.
+	 */
+	fun hasStaleArt() = icon.isStale() || cover.isStale()
+
+	private fun decodeIcon(): Bitmap? {
+		// the icon may as well be packed into one of the gamedir's archives
+		val files = GameFiles.of(basedir)
+		if (!files.exists(info.icon)) return null
+		val buffer = try {
+			files.read(info.icon)
+		} catch (e: IOException) {
+			Log.w(TAG, "Failed to read icon of ${basedir.name}", e)
+			return null
 		}
 
-		try {
-			cover = BackgroundBitmap.createBackground(basedir)
-		} catch (e: Exception) {
-			e.printStackTrace()
+		// game.ico holds several sizes, decode only the one closest to the card icon
+		if (IcoReader.isIco(buffer)) {
+			val reader = icoReader.get()!!
+			return try {
+				reader.decode(buffer, (ICON_SIZE_DP * ctx.resources.displayMetrics.density).toInt())
+				ImageCache.obtain(reader.width, reader.height, Bitmap.Config.ARGB_8888).apply {
+					setHasAlpha(true)
+					setPixels(reader.pixels, 0, reader.width, 0, 0, reader.width, reader.height)
+				}
+			} catch (e: IOException) {
+				Log.w(TAG, "Failed to decode icon of ${basedir.name}", e)
+				null
+			}
+		}
+
+		val data = ByteArray(buffer.remaining())
+		buffer.get(data)
+
+		val options = BitmapFactory.Options()
+		options.inJustDecodeBounds = true
+		BitmapFactory.decodeByteArray(data, 0, data.size, options)
+		if (options.outWidth <= 0 || options.outHeight <= 0) return null
+
+		val target = ImageCache.obtain(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888)
+		options.inJustDecodeBounds = false
+		options.inMutable = true
+		options.inBitmap = target
+		return try {
+			BitmapFactory.decodeByteArray(data, 0, data.size, options)
+		} catch (e: IllegalArgumentException) {
+			// the codec can't decode into an existing bitmap
+			ImageCache.recycle(target)
+			options.inBitmap = null
+			BitmapFactory.decodeByteArray(data, 0, data.size, options)
 		}
 	}
 
 	fun startEngine(ctx: Context) {
+		settings.putLong(GameSettings.LAST_PLAYED, System.currentTimeMillis())
 		ctx.startActivity(Intent(ctx, XashActivity::class.java).apply {
 			flags = Intent.FLAG_ACTIVITY_NEW_TASK or Intent.FLAG_ACTIVITY_CLEAR_TASK
 			putExtra("gamedir", basedir.name)
-			putExtra("argv", pref.getString("arguments", "-console -log"))
-			putExtra("usevolume", pref.getBoolean("use_volume_buttons", false))
+			putExtra("argv", settings.getString("arguments", "-console -log"))
+			putExtra("usevolume", settings.getBoolean("use_volume_buttons", false))
 			putExtra("basedir", basedir.parent)
 			//.putExtra("gamelibdir", getGameLibDir(context))
 			//.putExtra("package", getPackageName()) }
 		})
 	}
 
-	private fun parseGameInfo(file: File) {
-		FileInputStream(file).use { inputStream ->
-			inputStream.bufferedReader().use { reader ->
-				reader.forEachLine {
-					val tokens = it.split("\\s+".toRegex(), limit = 2)
-					if (tokens.size >= 2) {
-						val k = tokens[0]
-						val v = tokens[1].trim('"')
-
-						if (k == "title" || k == "game") title = v
-						if (k == "icon") iconName = v
-					}
-				}
-			}
-		}
-	}
-
 	private fun getPackageName(): String? {
 //        return if (mDbEntry != null) {
 //            mDbEntry.getPackageName()
@@ -96,31 +149,75 @@ class Game(val ctx: Context, val basedir: File) {
 		return ctx.applicationInfo.nativeLibraryDir
 	}
 
-	companion object {
-		fun getGames(ctx: Context, file: File): List<Game> {
-			val games = mutableListOf<Game>()
-
-			if (checkIfGamedir(file)) {
-				games.add(Game(ctx, file))
-			} else {
-				file.listFiles()?.forEach {
-					if (it.isDirectory) {
-						if (checkIfGamedir(it)) {
-							games.add(Game(ctx, it))
-						}
-					}
+	/**
+	 * Lazily decoded image kept in [ImageCache]. [load] decodes it if needed
+	 * and blocks, [acquire] only looks into the cache and pins what it finds.
+	 *
+	 * The cache key is [name] plus the [stamp] of the image's files, which may
+	 * touch the disk and is therefore only taken by [load]. Until then the
+	 * image is not in the cache as far as [acquire] is concerned.
+	 */
+	class Image(
+		private val name: String,
+		private val stamp: () -> Any,
+		private val decode: () -> Bitmap?
+	) {
+		@Volatile
+		private var key: String? = null
+
+		@Volatile
+		var isMissing = false
+			private set
+
+		/** Whether a [load] is running, it can't be interrupted once started. */
+		@Volatile
+		var isLoading = false
+			private set
+
+		@Synchronized
+		fun load() {
+			isLoading = true
+			try {
+				val key = "$name:${stamp()}"
+				if (key != this.key) {
+					this.key = key
+					isMissing = false
 				}
-			}
+				if (isMissing || ImageCache.contains(key)) return
 
-			return games
+				val bitmap = decode()
+				if (bitmap != null) {
+					ImageCache.put(key, bitmap)
+				} else {
+					isMissing = true
+				}
+			} finally {
+				isLoading = false
+			}
 		}
 
-		fun checkIfGamedir(file: File): Boolean {
-			if (File(file, "liblist.gam").exists()) return true
-			if (File(file, "gameinfo.txt").exists()) return true
+		fun acquire(): Bitmap? = key?.let { ImageCache.acquire(it) }
 
-			return false
+		/** Key the image was last loaded under, null before the first [load]. */
+		val loadedKey get() = key
+
+		fun isStale(): Boolean {
+			val key = key ?: return false
+			return key != "$name:${stamp()}"
+		}
+	}
+
+	companion object {
+		private const val TAG = "Game"
+		private const val COVER_HEIGHT_DP = 128
+		// card_game.xml: 48dp card minus 10dp padding on both sides
+		private const val ICON_SIZE_DP = 28
+
+		// decoders reuse their pixel buffer, keep one per loader thread
+		private val icoReader = object : ThreadLocal<IcoReader>() {
+			override fun initialValue() = IcoReader()
 		}
+
 	}
 }
 
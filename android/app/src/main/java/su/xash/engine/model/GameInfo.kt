@@ -0,0 +1,376 @@
+package su.xash.engine.model
+
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.File
+import java.io.IOException
+
+/**
+ * Contents of a gameinfo.txt or liblist.gam, read the same way the engine
+ * does in FS_ParseGenericGameInfo, defaults included.
+ */
+class GameInfo private constructor(val gamedir: String) {
+	enum class GameMode { NORMAL, SINGLEPLAYER_ONLY, MULTIPLAYER_ONLY }
+
+	var basedir = "valve"
+		private set
+	var fallbackDir = ""
+		private set
+	var title = gamedir
+		private set
+	var startMap = "c0a0"
+		private set
+	var trainMap = ""
+		private set
+	var demoMap = ""
+		private set
+	var version = 1.0f
+		private set
+	var size = 0L
+		private set
+	var urlInfo = ""
+		private set
+	var urlUpdate = ""
+		private set
+	var type = ""
+		private set
+	var date = ""
+		private set
+	var dllPath = "cl_dlls"
+		private set
+	var gameDll = "dlls/hl.dll"
+		private set
+	var gameDllLinux = "dlls/hl.so"
+		private set
+	var gameDllOsx = "dlls/hl.dylib"
+		private set
+	var icon = "game.ico"
+		private set
+	var gameMode = GameMode.NORMAL
+		private set
+	var spEntity = "info_player_start"
+		private set
+	var mpEntity = "info_player_deathmatch"
+		private set
+	var mpFilter = ""
+		private set
+	var secure = false
+		private set
+	var noModels = false
+		private set
+	var noSkills = false
+		private set
+	var hdBackground = false
+		private set
+	var animatedTitle = false
+		private set
+	var renderPicbuttonText = false
+		private set
+	var internalVguiSupport = false
+		private set
+	var maxEdicts = 1200
+		private set
+	var maxTempents = 500
+		private set
+	var maxBeams = 128
+		private set
+	var maxParticles = 4096
+		private set
+	var quicksaveAgedCount = 2
+		private set
+	var autosaveAgedCount = 2
+		private set
+
+	private fun parse(data: ByteArray, isGameInfo: Boolean) {
+		val tokens = Tokenizer(data)
+		var foundLinux = false
+		var foundOsx = false
+
+		fun string(): String? = if (tokens.next()) tokens.text() else null
+		fun int(): Int? = string()?.let { atoi(it) }
+		fun bool(): Boolean? = int()?.let { it != 0 }
+
+		while (tokens.next()) {
+			// aliases that differ between liblist.gam and gameinfo.txt
+			val key = when (val token = tokens.key()) {
+				"game" -> if (isGameInfo) token else "title"
+				"trainingmap" -> if (isGameInfo) token else "trainmap"
+				"url_dl" -> if (isGameInfo) token else "url_update"
+				"mpentity" -> if (isGameInfo) token else "mp_entity"
+				"mpfilter" -> if (isGameInfo) token else "mp_filter"
+				"edicts" -> if (isGameInfo) token else "max_edicts"
+				"title", "url_update", "mp_entity", "mp_filter", "max_edicts" ->
+					if (isGameInfo) token else ""
+				else -> token
+			}
+
+			when (key) {
+				"title" -> title = string() ?: break
+				"fallback_dir" -> fallbackDir = string() ?: break
+				"startmap" -> startMap = stripExtension(string() ?: break)
+				"trainmap" -> trainMap = stripExtension(string() ?: break)
+				"url_info" -> urlInfo = string() ?: break
+				"url_update" -> urlUpdate = string() ?: break
+				"gamedll" -> gameDll = fixSlashes(string() ?: break)
+				"gamedll_linux" -> {
+					gameDllLinux = string() ?: break
+					foundLinux = true
+				}
+				"gamedll_osx" -> {
+					gameDllOsx = string() ?: break
+					foundOsx = true
+				}
+				"icon" -> icon = defaultExtension(fixSlashes(string() ?: break), ".ico")
+				"type" -> {
+					val value = string() ?: break
+					if (isGameInfo) {
+						type = value
+					} else if (value.equals("singleplayer_only", true)) {
+						// Half-Life is marked singleplayer only but has multiplayer, same hack as the engine
+						gameMode = if (gamedir.equals("valve", true)) GameMode.NORMAL else GameMode.SINGLEPLAYER_ONLY
+						type = "Single"
+					} else if (value.equals("multiplayer_only", true)) {
+						gameMode = GameMode.MULTIPLAYER_ONLY
+						type = "Multiplayer"
+					} else {
+						gameMode = GameMode.NORMAL
+						type = value
+					}
+				}
+				"version" -> version = (string() ?: break).toFloatOrNull() ?: 0f
+				"size" -> size = (int() ?: break).toLong()
+				"mp_entity" -> mpEntity = string() ?: break
+				"mp_filter" -> mpFilter = string() ?: break
+				"secure" -> secure = bool() ?: break
+				"nomodels" -> noModels = bool() ?: break
+				"max_edicts" -> maxEdicts = (int() ?: break).coerceIn(MIN_EDICTS, MAX_EDICTS)
+				"hd_background" -> hdBackground = bool() ?: break
+				"animated_title" -> animatedTitle = bool() ?: break
+				else -> if (isGameInfo) when {
+					key == "basedir" -> basedir = string() ?: break
+					key == "sp_entity" -> spEntity = string() ?: break
+					key == "dllpath" -> dllPath = string() ?: break
+					key == "date" -> date = string() ?: break
+					key == "max_tempents" -> maxTempents = (int() ?: break).coerceIn(300, 2048)
+					key == "max_beams" -> maxBeams = (int() ?: break).coerceIn(64, 512)
+					key == "max_particles" -> maxParticles = (int() ?: break).coerceIn(1024, 131072)
+					key == "gamemode" -> {
+						val value = string() ?: break
+						if (value.equals("singleplayer_only", true) && !gamedir.equals("valve", true)) {
+							gameMode = GameMode.SINGLEPLAYER_ONLY
+						} else if (value.equals("multiplayer_only", true)) {
+							gameMode = GameMode.MULTIPLAYER_ONLY
+						}
+					}
+					key.startsWith("ambient") -> string() ?: break
+					key == "noskills" -> noSkills = bool() ?: break
+					key == "render_picbutton_text" -> renderPicbuttonText = bool() ?: break
+					key == "internal_vgui_support" -> internalVguiSupport = bool() ?: break
+					key == "quicksave_aged_count" -> quicksaveAgedCount = (int() ?: break).coerceIn(2, 99)
+					key == "autosave_aged_count" -> autosaveAgedCount = (int() ?: break).coerceIn(2, 99)
+					key == "demomap" -> demoMap = string() ?: break
+				}
+			}
+		}
+
+		// the 25th anniversary update of Half-Life comes with a demo chapter
+		if (demoMap.isEmpty() && title.equals("Half-Life", true)) demoMap = "hldemo1"
+
+		val gameDllBase = stripExtension(gameDll)
+		if (!foundLinux) gameDllLinux = "$gameDllBase.so"
+		if (!foundOsx) gameDllOsx = "$gameDllBase.dylib"
+	}
+
+	fun writeTo(out: DataOutput) {
+		out.writeUTF(gamedir)
+		STRINGS.forEach { out.writeUTF(it.get(this)) }
+		out.writeFloat(version)
+		out.writeLong(size)
+		out.writeInt(gameMode.ordinal)
+		out.writeInt(flags())
+		out.writeInt(maxEdicts)
+		out.writeInt(maxTempents)
+		out.writeInt(maxBeams)
+		out.writeInt(maxParticles)
+		out.writeInt(quicksaveAgedCount)
+		out.writeInt(autosaveAgedCount)
+	}
+
+	private fun flags(): Int {
+		var flags = 0
+		BOOLEANS.forEachIndexed { i, it -> if (it.get(this)) flags = flags or (1 shl i) }
+		return flags
+	}
+
+	/** Splits a gameinfo into tokens exactly like COM_ParseFile with no flags, without decoding it first. */
+	private class Tokenizer(private val data: ByteArray) {
+		private var pos = 0
+		private var token = ByteArray(64)
+		private var length = 0
+
+		fun next(): Boolean {
+			length = 0
+			while (true) {
+				while (pos < data.size && (data[pos].toInt() and 0xFF) <= SPACE) {
+					if (data[pos].toInt() == 0) return false
+					pos++
+				}
+				if (pos >= data.size) return false
+
+				if (data[pos] == SLASH && pos + 1 < data.size && data[pos + 1] == SLASH) {
+					while (pos < data.size && data[pos] != NEWLINE) pos++
+				} else {
+					break
+				}
+			}
+
+			val c = data[pos]
+			if (c == QUOTE) {
+				pos++
+				while (pos < data.size && data[pos].toInt() != 0) {
+					val b = data[pos++]
+					if (b == BACKSLASH && pos < data.size && data[pos] == QUOTE) {
+						append(QUOTE)
+						pos++
+					} else if (b == QUOTE) {
+						break
+					} else {
+						append(b)
+					}
+				}
+				return true
+			}
+
+			if (isSingleChar(c)) {
+				append(c)
+				pos++
+				return true
+			}
+
+			do {
+				append(data[pos++])
+			} while (pos < data.size && (data[pos].toInt() and 0xFF) > SPACE && !isSingleChar(data[pos]))
+			return true
+		}
+
+		fun text() = String(token, 0, length, Charsets.UTF_8)
+
+		/** The token as an ASCII lowercase key, keys are case insensitive. */
+		fun key(): String {
+			val chars = CharArray(length)
+			for (i in 0 until length) {
+				val b = token[i].toInt() and 0xFF
+				chars[i] = (if (b in 'A'.code..'Z'.code) b + 32 else b).toChar()
+			}
+			return String(chars)
+		}
+
+		private fun append(b: Byte) {
+			if (length == token.size) token = token.copyOf(length * 2)
+			token[length++] = b
+		}
+
+		private fun isSingleChar(b: Byte) = when (b.toInt().toChar()) {
+			'{', '}', ',', '\'', '(', ')' -> true
+			else -> false
+		}
+
+		companion object {
+			private const val SPACE = ' '.code
+			private const val SLASH = '/'.code.toByte()
+			private const val BACKSLASH = '\\'.code.toByte()
+			private const val QUOTE = '"'.code.toByte()
+			private const val NEWLINE = '\n'.code.toByte()
+		}
+	}
+
+	companion object {
+		private const val MIN_EDICTS = 64
+		private const val MAX_EDICTS = 8192
+
+		private val STRINGS = listOf(
+			GameInfo::basedir, GameInfo::fallbackDir, GameInfo::title, GameInfo::startMap,
+			GameInfo::trainMap, GameInfo::demoMap, GameInfo::urlInfo, GameInfo::urlUpdate,
+			GameInfo::type, GameInfo::date, GameInfo::dllPath, GameInfo::gameDll,
+			GameInfo::gameDllLinux, GameInfo::gameDllOsx, GameInfo::icon, GameInfo::spEntity,
+			GameInfo::mpEntity, GameInfo::mpFilter
+		)
+		private val BOOLEANS = listOf(
+			GameInfo::secure, GameInfo::noModels, GameInfo::noSkills, GameInfo::hdBackground,
+			GameInfo::animatedTitle, GameInfo::renderPicbuttonText, GameInfo::internalVguiSupport
+		)
+
+		/**
+		 * The file the engine takes the game info of [dir] from: gameinfo.txt,
+		 * unless liblist.gam is newer and would be converted over it.
+		 */
+		fun sourceFile(dir: File): File? {
+			val gameInfo = File(dir, "gameinfo.txt")
+			val libList = File(dir, "liblist.gam")
+			val gameInfoTime = gameInfo.lastModified()
+			val libListTime = libList.lastModified()
+
+			return when {
+				gameInfoTime != 0L && libListTime > gameInfoTime -> libList
+				gameInfoTime != 0L -> gameInfo
+				libListTime != 0L -> libList
+				else -> null
+			}
+		}
+
+		/** Reads the game info of [dir], or the engine defaults if there is none. */
+		fun read(dir: File): GameInfo {
+			val info = GameInfo(dir.name)
+			val file = sourceFile(dir) ?: return info
+			try {
+				info.parse(file.readBytes(), file.name == "gameinfo.txt")
+			} catch (e: IOException) {
+				e.printStackTrace()
+			}
+			return info
+		}
+
+		fun parse(gamedir: String, data: ByteArray, isGameInfo: Boolean): GameInfo {
+			return GameInfo(gamedir).also { it.parse(data, isGameInfo) }
+		}
+
+		fun readFrom(input: DataInput): GameInfo {
+			val info = GameInfo(input.readUTF())
+			STRINGS.forEach { it.set(info, input.readUTF()) }
+			info.version = input.readFloat()
+			info.size = input.readLong()
+			info.gameMode = GameMode.values()[input.readInt()]
+			val flags = input.readInt()
+			BOOLEANS.forEachIndexed { i, it -> it.set(info, flags and (1 shl i) != 0) }
+			info.maxEdicts = input.readInt()
+			info.maxTempents = input.readInt()
+			info.maxBeams = input.readInt()
+			info.maxParticles = input.readInt()
+			info.quicksaveAgedCount = input.readInt()
+			info.autosaveAgedCount = input.readInt()
+			return info
+		}
+
+		private fun atoi(value: String): Int {
+			var i = if (value.startsWith('-') || value.startsWith('+')) 1 else 0
+			var result = 0L
+			while (i < value.length && value[i].isDigit() && result < Int.MAX_VALUE) {
+				result = result * 10 + (value[i] - '0')
+				i++
+			}
+			val clamped = result.coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
+			return if (value.startsWith('-')) -clamped else clamped
+		}
+
+		private fun fixSlashes(path: String) = path.replace('\\', '/')
+
+		private fun stripExtension(path: String): String {
+			val dot = path.lastIndexOf('.')
+			return if (dot > path.lastIndexOf('/')) path.substring(0, dot) else path
+		}
+
+		private fun defaultExtension(path: String, extension: String): String {
+			return if (path.lastIndexOf('.') > path.lastIndexOf('/')) path else path + extension
+		}
+	}
+}
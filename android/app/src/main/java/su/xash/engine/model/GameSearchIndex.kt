@@ -0,0 +1,153 @@
+package su.xash.engine.model
+
+import java.util.BitSet
+import java.util.Locale
+
+/**
+ * In-memory search index over the library. Every game's title, gamedir and
+ * gameinfo fields are split into grams of up to [GRAM] characters, each gram
+ * maps to the set of games containing it. Games are added and removed one by
+ * one while the library is scanned, queries never touch the games' data.
+ *
+ * Not thread safe on its own, the callers synchronize on the index.
+ */
+class GameSearchIndex {
+	enum class SortOrder { NAME, LAST_PLAYED, SIZE }
+
+	private class Slot(val game: Game, val text: String, val grams: Set<String>, val lastPlayed: Long)
+
+	private val slots = ArrayList<Slot?>()
+	private val freeSlots = ArrayDeque<Int>()
+	private val byName = HashMap<String, Int>()
+	private val postings = HashMap<String, BitSet>()
+
+	// rebuilt on the first query after a change, not on every keystroke
+	private val sorted = HashMap<SortOrder, IntArray>()
+
+	val size get() = byName.size
+
+	/**
+	 * Adds [game], replacing the game with the same gamedir name. [lastPlayed]
+	 * is passed in so that the index never reads settings itself.
+	 */
+	fun put(game: Game, lastPlayed: Long) {
+		val old = byName[game.basedir.name]?.let { slots[it] }
+		if (old?.game === game && old.lastPlayed == lastPlayed) return
+		remove(game.basedir.name)
+
+		val text = textOf(game)
+		val grams = HashSet<String>()
+		for (word in text.split(' ')) {
+			for (n in 1..GRAM) {
+				for (i in 0..word.length - n) grams.add(word.substring(i, i + n))
+			}
+		}
+
+		val slot = freeSlots.removeFirstOrNull() ?: slots.size.also { slots.add(null) }
+		slots[slot] = Slot(game, text, grams, lastPlayed)
+		byName[game.basedir.name] = slot
+		grams.forEach { postings.getOrPut(it) { BitSet() }.set(slot) }
+		sorted.clear()
+	}
+
+	fun remove(name: String) {
+		val slot = byName.remove(name) ?: return
+		slots[slot]!!.grams.forEach { gram ->
+			val games = postings[gram]!!
+			games.clear(slot)
+			if (games.isEmpty) postings.remove(gram)
+		}
+		slots[slot] = null
+		freeSlots.add(slot)
+		sorted.clear()
+	}
+
+	/** Removes every game whose gamedir name isn't in [names]. */
+	fun retainAll(names: Set<String>) {
+		byName.keys.filter { it !in names }.forEach { remove(it) }
+	}
+
+	/**
+	 * Makes the index hold exactly [games], with launch times by gamedir from
+	 * [lastPlayed]. Unchanged games are kept as they are.
+	 */
+	fun replaceAll(games: Collection<Game>, lastPlayed: Map<String, Long>) {
+		retainAll(games.mapTo(HashSet()) { it.basedir.name })
+		games.forEach { put(it, lastPlayed[it.basedir.name] ?: 0L) }
+	}
+
+	/**
+	 * Games matching every word of [query] as a substring of their text, in
+	 * [order]. An empty query lists the whole library.
+	 */
+	fun query(query: String, order: SortOrder): List<Game> {
+		val words = normalize(query).split(' ').filter { it.isNotEmpty() }
+		var matches: BitSet? = null
+		for (word in words) {
+			val found = matches?.apply { and(find(word)) } ?: find(word)
+			if (found.isEmpty) return emptyList()
+			matches = found
+		}
+
+		val result = ArrayList<Game>(matches?.cardinality() ?: size)
+		for (slot in sortedSlots(order)) {
+			if (matches == null || matches.get(slot)) result.add(slots[slot]!!.game)
+		}
+		return result
+	}
+
+	private fun find(word: String): BitSet {
+		if (word.length <= GRAM) return postings[word]?.clone() as BitSet? ?: BitSet()
+
+		// every gram of the word has to be there, then check they are in one piece
+		val candidates = postings[word.substring(0, GRAM)]?.clone() as BitSet? ?: return BitSet()
+		for (i in 1..word.length - GRAM) {
+			val games = postings[word.substring(i, i + GRAM)] ?: return BitSet()
+			candidates.and(games)
+			if (candidates.isEmpty) return candidates
+		}
+		var slot = candidates.nextSetBit(0)
+		while (slot >= 0) {
+			if (!slots[slot]!!.text.contains(word)) candidates.clear(slot)
+			slot = candidates.nextSetBit(slot + 1)
+		}
+		return candidates
+	}
+
+	private fun sortedSlots(order: SortOrder): IntArray {
+		return sorted.getOrPut(order) {
+			val byTitle = compareBy(String.CASE_INSENSITIVE_ORDER) { slot: Slot -> slot.game.title }
+				.thenBy { it.game.basedir.name }
+			val comparator = when (order) {
+				SortOrder.NAME -> byTitle
+				SortOrder.LAST_PLAYED -> compareByDescending<Slot> { it.lastPlayed }.then(byTitle)
+				SortOrder.SIZE -> compareByDescending<Slot> { it.game.info.size }.then(byTitle)
+			}
+			byName.values.sortedWith { a, b -> comparator.compare(slots[a]!!, slots[b]!!) }.toIntArray()
+		}
+	}
+
+	private companion object {
+		const val GRAM = 3
+
+		fun textOf(game: Game): String {
+			val info = game.info
+			return normalize(
+				listOf(
+					game.title, game.basedir.name, info.basedir, info.fallbackDir, info.type,
+					info.date, info.startMap, info.gameDll, info.urlInfo
+				).joinToString(" ")
+			)
+		}
+
+		// words are separated by single spaces, so grams never cross fields
+		fun normalize(text: String): String {
+			return text.lowercase(Locale.ROOT)
+				.map { if (it.isLetterOrDigit()) it else ' ' }
+				.joinToString("")
+				.split(' ')
+				.filter { it.isNotEmpty() }
+				.joinToString(" ")
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package su.xash.engine.model
+
+import android.content.Context
+import android.content.SharedPreferences
+import androidx.preference.PreferenceDataStore
+import java.io.File
+
+/**
+ * Settings of every game in a single preference file, keyed by gamedir.
+ * The file is only loaded when a game's settings are first read, instead of
+ * one file per discovered gamedir. Settings left in the old per-gamedir
+ * files are moved over in one go when the file is loaded.
+ */
+object GameSettings {
+	/** When a game was last launched, in milliseconds. */
+	const val LAST_PLAYED = "last_played"
+
+	private const val PREFS_NAME = "game_settings"
+	// everything the game settings screen ever stored in a per-gamedir file
+	private val LEGACY_KEYS = setOf(
+		"arguments", "use_volume_buttons", "separate_libraries", "package_name", "client_package",
+		"server_package", LAST_PLAYED
+	)
+
+	@Volatile
+	private var shared: SharedPreferences? = null
+
+	fun of(ctx: Context, gamedir: String) = Store(ctx.applicationContext, gamedir)
+
+	private fun load(ctx: Context): SharedPreferences {
+		return shared ?: synchronized(this) {
+			shared ?: ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).also {
+				migrate(ctx, it)
+				shared = it
+			}
+		}
+	}
+
+	private fun keyOf(gamedir: String, key: String) = "$gamedir/$key"
+
+	/** [LAST_PLAYED] of every game that was ever launched, by gamedir, in one pass over the file. */
+	fun lastPlayedTimes(ctx: Context): Map<String, Long> {
+		val suffix = keyOf("", LAST_PLAYED)
+		val times = HashMap<String, Long>()
+		load(ctx.applicationContext).all.forEach { (key, value) ->
+			if (key.endsWith(suffix) && value is Long) times[key.removeSuffix(suffix)] = value
+		}
+		return times
+	}
+
+	// gamedir settings used to live in shared_prefs/<gamedir>.xml, a single listing finds them all
+	private fun migrate(ctx: Context, prefs: SharedPreferences) {
+		val dir = File(ctx.applicationInfo.dataDir, "shared_prefs")
+		val ownNames = setOf(PREFS_NAME, "xash_preferences", "${ctx.packageName}_preferences")
+		val legacy = dir.list().orEmpty()
+			.filter { it.endsWith(".xml") }
+			.map { it.removeSuffix(".xml") }
+			.filter { it !in ownNames }
+			.map { it to ctx.getSharedPreferences(it, Context.MODE_PRIVATE) }
+			.filter { (_, old) -> old.all.isNotEmpty() && LEGACY_KEYS.containsAll(old.all.keys) }
+		if (legacy.isEmpty()) return
+
+		val editor = prefs.edit()
+		legacy.forEach { (gamedir, old) ->
+			old.all.forEach { (key, value) ->
+				val newKey = keyOf(gamedir, key)
+				when (value) {
+					is String -> editor.putString(newKey, value)
+					is Boolean -> editor.putBoolean(newKey, value)
+					is Int -> editor.putInt(newKey, value)
+					is Long -> editor.putLong(newKey, value)
+					is Float -> editor.putFloat(newKey, value)
+					is Set<*> -> editor.putStringSet(newKey, value.filterIsInstance<String>().toSet())
+				}
+			}
+		}
+		// committed before the old files go away, so nothing is lost on a crash
+		editor.commit()
+
+		legacy.forEach { (gamedir, _) -> File(dir, "$gamedir.xml").delete() }
+	}
+
+	/** Settings of one gamedir, usable as the data store of a preference screen. */
+	class Store internal constructor(private val ctx: Context, private val gamedir: String) :
+		PreferenceDataStore() {
+		private val prefs by lazy { load(ctx) }
+
+		private fun scoped(key: String) = keyOf(gamedir, key)
+
+		override fun getString(key: String, defValue: String?) = prefs.getString(scoped(key), defValue)
+
+		override fun putString(key: String, value: String?) {
+			prefs.edit().putString(scoped(key), value).apply()
+		}
+
+		override fun getStringSet(key: String, defValues: MutableSet<String>?): MutableSet<String>? {
+			return prefs.getStringSet(scoped(key), defValues)
+		}
+
+		override fun putStringSet(key: String, values: MutableSet<String>?) {
+			prefs.edit().putStringSet(scoped(key), values).apply()
+		}
+
+		override fun getBoolean(key: String, defValue: Boolean) = prefs.getBoolean(scoped(key), defValue)
+
+		override fun putBoolean(key: String, value: Boolean) {
+			prefs.edit().putBoolean(scoped(key), value).apply()
+		}
+
+		override fun getInt(key: String, defValue: Int) = prefs.getInt(scoped(key), defValue)
+
+		override fun putInt(key: String, value: Int) {
+			prefs.edit().putInt(scoped(key), value).apply()
+		}
+
+		override fun getLong(key: String, defValue: Long) = prefs.getLong(scoped(key), defValue)
+
+		override fun putLong(key: String, value: Long) {
+			prefs.edit().putLong(scoped(key), value).apply()
+		}
+
+		override fun getFloat(key: String, defValue: Float) = prefs.getFloat(scoped(key), defValue)
+
+		override fun putFloat(key: String, value: Float) {
+			prefs.edit().putFloat(scoped(key), value).apply()
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package su.xash.engine.model
+
+import android.content.ComponentCallbacks2
+import android.graphics.Bitmap
+import android.util.LruCache
+import java.util.IdentityHashMap
+
+/**
+ * Launcher wide cache of decoded icons and covers, bounded by bytes.
+ *
+ * Bitmaps shown on screen are pinned with [acquire] and [release]. Evicted
+ * bitmaps that nobody holds go to a small pool and are handed out again by
+ * [obtain] as decode targets, so scrolling a large library doesn't keep
+ * allocating fresh bitmaps.
+ */
+object ImageCache {
+	private val maxBytes = (Runtime.getRuntime().maxMemory() / 8).toInt()
+	private val maxPoolBytes = maxBytes / 4
+
+	private val refs = IdentityHashMap<Bitmap, Int>()
+	private val retired = IdentityHashMap<Bitmap, Boolean>()
+	private val pool = ArrayList<Bitmap>()
+	private var poolBytes = 0
+
+	private val cache = object : LruCache<String, Bitmap>(maxBytes) {
+		override fun sizeOf(key: String, value: Bitmap) = value.allocationByteCount
+
+		override fun entryRemoved(evicted: Boolean, key: String, oldValue: Bitmap, newValue: Bitmap?) {
+			if (oldValue !== newValue) retire(oldValue)
+		}
+	}
+
+	/** Returns the cached bitmap for [key] and pins it, or null. */
+	@Synchronized
+	fun acquire(key: String): Bitmap? {
+		val bitmap = cache.get(key) ?: return null
+		refs[bitmap] = (refs[bitmap] ?: 0) + 1
+		return bitmap
+	}
+
+	/** Unpins a bitmap returned by [acquire]. */
+	@Synchronized
+	fun release(bitmap: Bitmap) {
+		val count = refs[bitmap] ?: return
+		if (count > 1) {
+			refs[bitmap] = count - 1
+		} else {
+			refs.remove(bitmap)
+			if (retired.remove(bitmap) != null) recycle(bitmap)
+		}
+	}
+
+	fun contains(key: String) = cache.get(key) != null
+
+	fun put(key: String, bitmap: Bitmap) {
+		cache.put(key, bitmap)
+	}
+
+	/** Returns a mutable bitmap to decode into, reusing a pooled one if it's big enough. */
+	@Synchronized
+	fun obtain(width: Int, height: Int, config: Bitmap.Config): Bitmap {
+		val bytes = width * height * bytesPerPixel(config)
+		var best = -1
+		pool.forEachIndexed { i, bitmap ->
+			val size = bitmap.allocationByteCount
+			if (size >= bytes && (best < 0 || size < pool[best].allocationByteCount)) best = i
+		}
+
+		if (best >= 0) {
+			val bitmap = pool.removeAt(best)
+			poolBytes -= bitmap.allocationByteCount
+			bitmap.reconfigure(width, height, config)
+			return bitmap
+		}
+		return Bitmap.createBitmap(width, height, config)
+	}
+
+	/** Hands a bitmap nobody references anymore over to the pool. */
+	@Synchronized
+	fun recycle(bitmap: Bitmap) {
+		if (!bitmap.isMutable || bitmap.isRecycled) return
+
+		pool.add(bitmap)
+		poolBytes += bitmap.allocationByteCount
+		while (poolBytes > maxPoolBytes) {
+			poolBytes -= pool.removeAt(0).allocationByteCount
+		}
+	}
+
+	fun trimMemory(level: Int) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+			|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+		) {
+			cache.evictAll()
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			cache.trimToSize(maxBytes / 2)
+		}
+
+		synchronized(this) {
+			pool.clear()
+			poolBytes = 0
+		}
+	}
+
+	@Synchronized
+	private fun retire(bitmap: Bitmap) {
+		if (refs.containsKey(bitmap)) {
+			// still on screen, pool it once the last view lets go
+			retired[bitmap] = true
+		} else {
+			recycle(bitmap)
+		}
+	}
+
+	private fun bytesPerPixel(config: Bitmap.Config) = when (config) {
+		Bitmap.Config.ALPHA_8 -> 1
+		Bitmap.Config.RGB_565, Bitmap.Config.ARGB_4444 -> 2
+		else -> 4
+	}
+}
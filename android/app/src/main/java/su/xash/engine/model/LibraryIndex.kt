@@ -0,0 +1,247 @@
+package su.xash.engine.model
+
+import android.content.Context
+import android.util.Log
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * Persistent index of the game library.
+ *
+ * Every directory the scan looks at is remembered with its mtime, and
+ * gamedirs also with the mtime of the gameinfo.txt or liblist.gam they were
+ * parsed from and the [GameInfo] read from it. A rescan of an unchanged library
+ * costs a stat of the root, of each subdirectory and of each info file,
+ * without listing roots or parsing anything. Unchanged games keep their
+ * [Game] instance between scans.
+ */
+object LibraryIndex {
+	private const val TAG = "LibraryIndex"
+	private const val INDEX_MAGIC = 0x584C4942 // XLIB
+	private const val INDEX_VERSION = 2
+	private const val INDEX_FILE = "library.idx"
+	internal val INFO_FILES = arrayOf("gameinfo.txt", "liblist.gam")
+
+	private data class Entry(
+		val mtime: Long,
+		// the gameinfo.txt or liblist.gam read, empty if the directory isn't a gamedir
+		val source: String,
+		val sourceMtime: Long,
+		val info: GameInfo?,
+		// subdirectories, only kept for roots
+		val children: List<String>
+	) {
+		val isGamedir get() = source.isNotEmpty()
+	}
+
+	private var file: File? = null
+	private val entries = HashMap<String, Entry>()
+	private val games = HashMap<String, Game>()
+	private val seen = HashSet<String>()
+	private var dirty = false
+
+	/**
+	 * Directories below [root] that may hold a game: [root] itself if it's a
+	 * gamedir, its subdirectories otherwise. Pass them to [getGame].
+	 */
+	fun candidates(ctx: Context, root: File): List<File> {
+		synchronized(this) { open(ctx) }
+
+		val entry = resolve(ctx, root, root.lastModified(), true)
+		if (entry.isGamedir) return listOf(root)
+		return entry.children.map { File(root, it) }
+	}
+
+	/**
+	 * The game in [dir], or null. gameinfo is only parsed if it changed since
+	 * the last scan, several directories may be resolved in parallel.
+	 */
+	fun getGame(ctx: Context, dir: File): Game? {
+		val mtime = dir.lastModified()
+		// removed since the root was listed
+		if (mtime == 0L) return null
+
+		if (!resolve(ctx, dir, mtime, false).isGamedir) return null
+		val game = synchronized(this) { games[dir.path] } ?: return null
+
+		// art can change without touching the gamedir, a fresh instance gets new image keys
+		if (!game.hasStaleArt()) return game
+		val fresh = Game(ctx.applicationContext, dir, game.info, game.mtime)
+		return synchronized(this) {
+			if (games[dir.path] === game) games[dir.path] = fresh
+			games[dir.path]
+		}
+	}
+
+	/**
+	 * Re-reads [dir] after a change was reported below [root]. [dir] is a
+	 * direct child of [root], or [root] itself.
+	 */
+	@Synchronized
+	fun update(ctx: Context, root: File, dir: File) {
+		open(ctx)
+		val rootEntry = entries[root.path] ?: return
+
+		if (dir == root || (dir.name in INFO_FILES && !dir.isDirectory)) {
+			entries.remove(root.path)
+			resolve(ctx, root, root.lastModified(), true)
+			return
+		}
+
+		val mtime = dir.lastModified()
+		val exists = mtime != 0L && dir.isDirectory
+		val children = rootEntry.children.filter { it != dir.name }
+		entries[root.path] = rootEntry.copy(
+			mtime = root.lastModified(),
+			children = if (exists) children + dir.name else children
+		)
+
+		if (exists) {
+			resolve(ctx, dir, mtime, false)
+		} else {
+			entries.remove(dir.path)
+			games.remove(dir.path)
+		}
+		dirty = true
+	}
+
+	/** Games found below [root] by the last scan or update, without touching the disk. */
+	@Synchronized
+	fun cachedGames(root: File): List<Game> {
+		val entry = entries[root.path] ?: return emptyList()
+		if (entry.isGamedir) return listOfNotNull(games[root.path])
+		return entry.children.mapNotNull { games[File(root, it).path] }
+	}
+
+	/** Directories directly below [root] as of the last scan or update. */
+	@Synchronized
+	fun children(root: File): List<File> {
+		return entries[root.path]?.children?.map { File(root, it) }.orEmpty()
+	}
+
+	/**
+	 * Ends a scan and writes the index out. A [complete] scan also forgets
+	 * directories it didn't reach, a cancelled one can't tell them apart.
+	 */
+	@Synchronized
+	fun commit(complete: Boolean = true) {
+		if (file == null) return
+
+		if (complete) {
+			if (entries.keys.retainAll(seen)) dirty = true
+			games.keys.retainAll(seen)
+		}
+		seen.clear()
+		flush()
+	}
+
+	/** Writes the index out if anything changed. */
+	@Synchronized
+	fun flush() {
+		if (file == null || !dirty) return
+
+		try {
+			save()
+			dirty = false
+		} catch (e: IOException) {
+			Log.w(TAG, "Failed to save library index", e)
+		}
+	}
+
+	// parses outside of the lock so that scans can run in parallel
+	private fun resolve(ctx: Context, dir: File, mtime: Long, isRoot: Boolean): Entry {
+		val path = dir.path
+		val old = synchronized(this) {
+			seen.add(path)
+			entries[path]
+		}
+
+		if (old != null && old.mtime == mtime
+			&& (!old.isGamedir || File(dir, old.source).lastModified() == old.sourceMtime)
+		) {
+			if (old.isGamedir && synchronized(this) { path !in games }) {
+				val game = Game(ctx.applicationContext, dir, old.info!!, old.mtime)
+				synchronized(this) { games.getOrPut(path) { game } }
+			}
+			return old
+		}
+
+		val source = GameInfo.sourceFile(dir)
+		val game = source?.let { Game(ctx.applicationContext, dir, GameInfo.read(dir), mtime) }
+		val entry = if (source != null && game != null) {
+			Entry(mtime, source.name, source.lastModified(), game.info, emptyList())
+		} else {
+			val children = if (isRoot) {
+				dir.listFiles()?.filter { it.isDirectory }?.map { it.name }.orEmpty()
+			} else {
+				emptyList()
+			}
+			Entry(mtime, "", 0, null, children)
+		}
+
+		synchronized(this) {
+			if (game != null) games[path] = game else games.remove(path)
+			entries[path] = entry
+			dirty = true
+		}
+		return entry
+	}
+
+	private fun open(ctx: Context) {
+		if (file != null) return
+		val indexFile = File(ctx.cacheDir, INDEX_FILE)
+		file = indexFile
+		if (!indexFile.exists()) return
+
+		try {
+			load(indexFile)
+		} catch (e: IOException) {
+			Log.w(TAG, "Discarding library index", e)
+			entries.clear()
+			indexFile.delete()
+		}
+	}
+
+	private fun load(indexFile: File) {
+		DataInputStream(FileInputStream(indexFile).buffered()).use {
+			if (it.readInt() != INDEX_MAGIC || it.readInt() != INDEX_VERSION) {
+				throw IOException("Unknown index format")
+			}
+			repeat(it.readInt()) { _ ->
+				val path = it.readUTF()
+				val mtime = it.readLong()
+				val source = it.readUTF()
+				val sourceMtime = it.readLong()
+				val info = if (source.isNotEmpty()) GameInfo.readFrom(it) else null
+				val children = List(it.readInt()) { _ -> it.readUTF() }
+				entries[path] = Entry(mtime, source, sourceMtime, info, children)
+			}
+		}
+	}
+
+	private fun save() {
+		val indexFile = file!!
+		val tmp = File(indexFile.path + ".tmp")
+		DataOutputStream(FileOutputStream(tmp).buffered()).use {
+			it.writeInt(INDEX_MAGIC)
+			it.writeInt(INDEX_VERSION)
+			it.writeInt(entries.size)
+			entries.forEach { (path, entry) ->
+				it.writeUTF(path)
+				it.writeLong(entry.mtime)
+				it.writeUTF(entry.source)
+				it.writeLong(entry.sourceMtime)
+				entry.info?.writeTo(it)
+				it.writeInt(entry.children.size)
+				entry.children.forEach { child -> it.writeUTF(child) }
+			}
+		}
+		if (!tmp.renameTo(indexFile)) {
+			throw IOException("Failed to replace $INDEX_FILE")
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package su.xash.engine.model
+
+import android.content.Context
+import android.os.Environment
+import android.preference.PreferenceManager
+import su.xash.engine.util.Nomedia
+import java.io.File
+
+/** A directory games are scanned from. On gamedir name clashes the higher [priority] wins. */
+data class LibraryRoot(val dir: File, val priority: Int)
+
+object LibraryRoots {
+	/** Extra folders added by the user, one path per line, first line wins. */
+	const val PREF_LIBRARY_FOLDERS = "library_folders"
+
+	private const val PRIORITY_INTERNAL = 300
+	private const val PRIORITY_EXTERNAL = 200
+	private const val PRIORITY_REMOVABLE = 100
+	private const val PRIORITY_USER = 0
+
+	/** Existing library roots, highest priority first. */
+	fun find(ctx: Context): List<LibraryRoot> {
+		val roots = mutableListOf<LibraryRoot>()
+
+		// the engine looks into internal storage first as well, see XashActivity
+		ctx.getExternalFilesDir(null)?.let { roots.add(LibraryRoot(it, PRIORITY_INTERNAL)) }
+
+		val externalDir = File(Environment.getExternalStorageDirectory(), "xash")
+		Nomedia.ensureNomedia(externalDir)
+		roots.add(LibraryRoot(externalDir, PRIORITY_EXTERNAL))
+
+		// removable cards: the app's own directory there, and a xash folder in the card root
+		ctx.getExternalFilesDirs(null).drop(1).filterNotNull().forEach {
+			roots.add(LibraryRoot(it, PRIORITY_REMOVABLE))
+			val volume = it.path.substringBefore("/Android/data/", "")
+			if (volume.isNotEmpty()) {
+				roots.add(LibraryRoot(File(volume, "xash"), PRIORITY_REMOVABLE - 1))
+			}
+		}
+
+		getFolders(ctx).forEachIndexed { i, path ->
+			roots.add(LibraryRoot(File(path), PRIORITY_USER - i))
+		}
+
+		return roots.filter { it.dir.isDirectory }
+			.distinctBy { it.dir.absolutePath }
+			.sortedByDescending { it.priority }
+	}
+
+	fun getFolders(ctx: Context): List<String> {
+		val preferences = PreferenceManager.getDefaultSharedPreferences(ctx)
+		return preferences.getString(PREF_LIBRARY_FOLDERS, "").orEmpty()
+			.lines().map { it.trim() }.filter { it.isNotEmpty() }
+	}
+}
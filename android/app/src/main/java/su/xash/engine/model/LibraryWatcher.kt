@@ -0,0 +1,75 @@
+package su.xash.engine.model
+
+import android.os.FileObserver
+import java.io.File
+
+/**
+ * Watches library roots and every directory directly below them.
+ *
+ * inotify isn't recursive, but one level is all the library needs: a root
+ * reports gamedirs coming and going, a gamedir reports its gameinfo.txt or
+ * liblist.gam being written. [onChange] is called on the observer thread
+ * with the root and the directory that has to be looked at again, which is
+ * the root itself when the root went away.
+ */
+class LibraryWatcher(private val onChange: (root: File, dir: File) -> Unit) {
+	private val observers = HashMap<String, FileObserver>()
+
+	val isWatching: Boolean
+		@Synchronized get() = observers.isNotEmpty()
+
+	/** Watches each root in [roots] together with the given subdirectories. */
+	@Synchronized
+	fun watch(roots: Map<File, List<File>>) {
+		val wanted = HashMap<String, Pair<File, File>>()
+		roots.forEach { (root, children) ->
+			wanted[root.path] = root to root
+			children.forEach { wanted[it.path] = root to it }
+		}
+
+		val iterator = observers.entries.iterator()
+		while (iterator.hasNext()) {
+			val entry = iterator.next()
+			if (entry.key !in wanted) {
+				entry.value.stopWatching()
+				iterator.remove()
+			}
+		}
+
+		wanted.forEach { (path, dirs) ->
+			if (path !in observers) {
+				observers[path] = observe(dirs.first, dirs.second)
+			}
+		}
+	}
+
+	@Synchronized
+	fun stop() {
+		observers.values.forEach { it.stopWatching() }
+		observers.clear()
+	}
+
+	@Suppress("DEPRECATION") // the File constructors need API 29
+	private fun observe(root: File, dir: File): FileObserver {
+		val isRoot = root == dir
+
+		return object : FileObserver(dir.path, EVENTS) {
+			override fun onEvent(event: Int, path: String?) {
+				if (event and (DELETE_SELF or MOVE_SELF) != 0) {
+					// a vanished gamedir is also reported by its root
+					if (isRoot) onChange(root, root)
+				} else if (isRoot) {
+					if (path != null) onChange(root, File(root, path))
+				} else if (path in LibraryIndex.INFO_FILES) {
+					onChange(root, dir)
+				}
+			}
+		}.also { it.startWatching() }
+	}
+
+	companion object {
+		private const val EVENTS = FileObserver.CREATE or FileObserver.DELETE or
+			FileObserver.MOVED_FROM or FileObserver.MOVED_TO or FileObserver.CLOSE_WRITE or
+			FileObserver.DELETE_SELF or FileObserver.MOVE_SELF
+	}
+}
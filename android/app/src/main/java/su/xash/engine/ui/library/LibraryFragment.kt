@@ -17,6 +17,7 @@ import android.view.MenuItem
 import android.view.View
 import android.view.ViewGroup
 import androidx.activity.result.contract.ActivityResultContracts
+import androidx.appcompat.widget.SearchView
 import androidx.core.app.ActivityCompat
 import androidx.core.content.ContextCompat
 import androidx.core.view.MenuProvider
@@ -29,6 +30,7 @@ import su.xash.engine.BuildConfig
 import su.xash.engine.R
 import su.xash.engine.adapters.GameAdapter
 import su.xash.engine.databinding.FragmentLibraryBinding
+import su.xash.engine.model.GameSearchIndex.SortOrder
 
 class LibraryFragment : Fragment(), MenuProvider {
     private var _binding: FragmentLibraryBinding? = null
@@ -162,7 +164,7 @@ class LibraryFragment : Fragment(), MenuProvider {
         }
 
         if (checkStoragePermissions()) {
-            libraryViewModel.reloadGames(requireContext())
+            libraryViewModel.refreshGames(requireContext())
         }
     }
 
@@ -173,6 +175,39 @@ class LibraryFragment : Fragment(), MenuProvider {
 
     override fun onCreateMenu(menu: Menu, menuInflater: MenuInflater) {
         menuInflater.inflate(R.menu.menu_library, menu)
+
+        val searchItem = menu.findItem(R.id.action_search)
+        val searchView = searchItem.actionView as SearchView
+        searchView.queryHint = getString(R.string.search_games)
+
+        // the menu is recreated on resume, bring back what was typed before
+        val query = libraryViewModel.query
+        if (query.isNotEmpty()) {
+            searchItem.expandActionView()
+            searchView.setQuery(query, false)
+        }
+
+        searchView.setOnQueryTextListener(object : SearchView.OnQueryTextListener {
+            override fun onQueryTextSubmit(query: String): Boolean {
+                searchView.clearFocus()
+                return true
+            }
+
+            override fun onQueryTextChange(newText: String): Boolean {
+                // tearing the menu down on pause collapses the view and clears the text
+                if (viewLifecycleOwner.lifecycle.currentState.isAtLeast(Lifecycle.State.RESUMED)) {
+                    libraryViewModel.setQuery(newText)
+                }
+                return true
+            }
+        })
+
+        val sortItem = when (libraryViewModel.sortOrder) {
+            SortOrder.NAME -> R.id.action_sort_name
+            SortOrder.LAST_PLAYED -> R.id.action_sort_last_played
+            SortOrder.SIZE -> R.id.action_sort_size
+        }
+        menu.findItem(sortItem).isChecked = true
     }
 
     override fun onMenuItemSelected(menuItem: MenuItem): Boolean {
@@ -180,16 +215,25 @@ class LibraryFragment : Fragment(), MenuProvider {
             R.id.action_settings -> {
                 findNavController().navigate(R.id.action_libraryFragment_to_appSettingsFragment)
             }
+
+            R.id.action_sort_name -> sortGames(menuItem, SortOrder.NAME)
+            R.id.action_sort_last_played -> sortGames(menuItem, SortOrder.LAST_PLAYED)
+            R.id.action_sort_size -> sortGames(menuItem, SortOrder.SIZE)
         }
 
         return false
     }
 
+    private fun sortGames(menuItem: MenuItem, order: SortOrder) {
+        menuItem.isChecked = true
+        libraryViewModel.setSortOrder(order)
+    }
+
     override fun onResume() {
         super.onResume()
 
         if (checkStoragePermissions()) {
-            libraryViewModel.reloadGames(requireContext())
+            libraryViewModel.refreshGames(requireContext())
         }
     }
 }
@@ -4,22 +4,45 @@ import android.app.Application
 import android.content.Context
 import android.content.SharedPreferences
 import android.preference.PreferenceManager
-import android.os.Environment
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.viewModelScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withContext
 import su.xash.engine.model.Game
-import su.xash.engine.util.Nomedia
+import su.xash.engine.model.GameSearchIndex
+import su.xash.engine.model.GameSettings
+import su.xash.engine.model.LibraryIndex
+import su.xash.engine.model.LibraryRoot
+import su.xash.engine.model.LibraryRoots
+import su.xash.engine.model.LibraryWatcher
+import su.xash.engine.util.StartupTrace
 import java.io.File
 
 class LibraryViewModel(application: Application) : AndroidViewModel(application) {
+    /** The library as shown, filtered by [query] and sorted by [sortOrder]. */
     val installedGames: LiveData<List<Game>> get() = _installedGames
     private val _installedGames = MutableLiveData(emptyList<Game>())
 
+    @Volatile
+    var query = ""
+        private set
+
+    @Volatile
+    var sortOrder = GameSearchIndex.SortOrder.NAME
+        private set
+
+    // fed while scanning, so typing into the search bar never walks the library
+    private val searchIndex = GameSearchIndex()
+
     val isReloading: LiveData<Boolean> get() = _isReloading
     private val _isReloading = MutableLiveData(false)
 
@@ -29,46 +52,228 @@ class LibraryViewModel(application: Application) : AndroidViewModel(application)
     private val defaultPreferences: SharedPreferences =
         PreferenceManager.getDefaultSharedPreferences(application)
 
+    private val preferenceListener =
+        SharedPreferences.OnSharedPreferenceChangeListener { _, key ->
+            if (key == LibraryRoots.PREF_LIBRARY_FOLDERS) reloadGames(getApplication())
+        }
+
+    private val watcher = LibraryWatcher { root, dir -> onLibraryChanged(root, dir) }
+    private val pendingChanges = LinkedHashSet<Pair<File, File>>()
+    private var updateJob: Job? = null
+    private var roots = emptyList<File>()
+
+    private var reloadTrigger: Job? = null
+    private var scanJob: Job? = null
+    private var scanRoots: List<LibraryRoot>? = null
+    private var rescanQueued = false
+
+    /**
+     * Rescans the library. Triggers arriving close together start a single
+     * scan. A scan that is already running over the same roots is followed by
+     * one more so the result isn't stale, a scan over other roots is cancelled.
+     */
     fun reloadGames(ctx: Context) {
-        if (isReloading.value == true) return
+        val appContext = ctx.applicationContext
         _isReloading.value = true
 
-        viewModelScope.launch {
-            withContext(Dispatchers.IO) {
-                val games = mutableListOf<Game>()
-                
-                val internalPath = ctx.getExternalFilesDir(null)?.absolutePath
-                val internalDir = File(internalPath ?: "")
-                
-                val externalPath = Environment.getExternalStorageDirectory().absolutePath + "/xash"
-                val externalDir = File(externalPath)
-                
-                Nomedia.ensureNomedia(externalDir)
-                
-                if (internalDir.exists() && internalDir.isDirectory) {
-                    games.addAll(Game.getGames(ctx, internalDir))
+        reloadTrigger?.cancel()
+        reloadTrigger = viewModelScope.launch {
+            delay(RELOAD_DELAY_MS)
+            val newRoots = withContext(Dispatchers.IO) { LibraryRoots.find(appContext) }
+
+            if (scanJob?.isActive == true) {
+                if (newRoots == scanRoots) {
+                    rescanQueued = true
+                    return@launch
                 }
-                
-                if (externalDir.exists() && externalDir.isDirectory) {
-                    val externalGames = Game.getGames(ctx, externalDir)
-                    externalGames.forEach { externalGame ->
-                        if (!games.any { it.basedir.name == externalGame.basedir.name }) {
-                            games.add(externalGame)
+                scanJob?.cancelAndJoin()
+            }
+            startScan(appContext, newRoots)
+        }
+    }
+
+    private fun startScan(ctx: Context, newRoots: List<LibraryRoot>) {
+        scanRoots = newRoots
+        rescanQueued = false
+
+        scanJob = viewModelScope.launch {
+            StartupTrace.begin(StartupTrace.LIBRARY_SCAN)
+            scanGames(ctx, newRoots)
+            StartupTrace.end(StartupTrace.LIBRARY_SCAN)
+
+            if (rescanQueued) {
+                startScan(ctx, withContext(Dispatchers.IO) { LibraryRoots.find(ctx) })
+            } else if (reloadTrigger?.isActive != true) {
+                _isReloading.value = false
+                // the scan may have listed a gamedir before it changed
+                scheduleChanges()
+            }
+        }
+    }
+
+    private suspend fun scanGames(ctx: Context, newRoots: List<LibraryRoot>) {
+        // a list that is already shown is replaced at once instead of shrinking and growing again
+        val progressive = synchronized(searchIndex) { searchIndex.size == 0 }
+
+        withContext(Dispatchers.IO) {
+            // read once up front, not per game while holding the locks below
+            val lastPlayed = GameSettings.lastPlayedTimes(ctx)
+
+            // publish games as soon as they are parsed, their images load later
+            // one entry per gamedir name, so merging stays linear over any number of roots
+            val found = HashMap<String, Pair<Int, Game>>()
+            val permits = Semaphore(SCAN_PARALLELISM)
+            var complete = false
+            try {
+                coroutineScope {
+                    // roots come sorted by priority, a lower index wins
+                    newRoots.forEachIndexed { priority, root ->
+                        LibraryIndex.candidates(ctx, root.dir).forEach { dir ->
+                            launch {
+                                val game = permits.withPermit { LibraryIndex.getGame(ctx, dir) }
+                                    ?: return@launch
+
+                                synchronized(found) {
+                                    val old = found[game.basedir.name]
+                                    if (old == null || old.first > priority) {
+                                        found[game.basedir.name] = priority to game
+                                        if (progressive) {
+                                            synchronized(searchIndex) {
+                                                searchIndex.put(game, lastPlayed[game.basedir.name] ?: 0L)
+                                            }
+                                            publishGames()
+                                        }
+                                    }
+                                }
+                            }
                         }
                     }
                 }
-                
-                _installedGames.postValue(games)
-                _isReloading.postValue(false)
+                complete = true
+            } finally {
+                LibraryIndex.commit(complete)
             }
+
+            roots = newRoots.map { it.dir }
+            watcher.watch(roots.associateWith { LibraryIndex.children(it) })
+
+            synchronized(searchIndex) { searchIndex.replaceAll(found.values.map { it.second }, lastPlayed) }
+            publishGames()
         }
     }
 
+    /** Rescans the library unless the watcher already keeps it up to date. */
+    fun refreshGames(ctx: Context) {
+        if (!watcher.isWatching) reloadGames(ctx)
+    }
+
+    // called on the observer thread
+    private fun onLibraryChanged(root: File, dir: File) {
+        synchronized(pendingChanges) {
+            pendingChanges.add(root to dir)
+        }
+
+        viewModelScope.launch { scheduleChanges() }
+    }
+
+    // main thread, a running update picks up whatever is queued by the time it finishes a batch
+    private fun scheduleChanges() {
+        if (updateJob?.isActive == true) return
+        if (synchronized(pendingChanges) { pendingChanges.isEmpty() }) return
+
+        // copying a mod fires lots of events, apply them in one go
+        updateJob = viewModelScope.launch {
+            do {
+                delay(UPDATE_DELAY_MS)
+                applyChanges()
+            } while (isReloading.value != true && synchronized(pendingChanges) { pendingChanges.isNotEmpty() })
+        }
+    }
+
+    private suspend fun applyChanges() {
+        // leave the changes queued, the scan applies them once it is done
+        if (isReloading.value == true) return
+
+        val ctx: Context = getApplication()
+        val changes = synchronized(pendingChanges) {
+            pendingChanges.toList().also { pendingChanges.clear() }
+        }
+
+        // too much changed at once, or a root went away, a full scan is cheaper
+        if (changes.size > MAX_PENDING_CHANGES || changes.any { it.first == it.second }) {
+            watcher.stop()
+            reloadGames(ctx)
+            return
+        }
+
+        withContext(Dispatchers.IO) {
+            changes.forEach { (root, dir) -> LibraryIndex.update(ctx, root, dir) }
+            LibraryIndex.flush()
+            watcher.watch(roots.associateWith { LibraryIndex.children(it) })
+
+            val games = mergeGames(roots.map { LibraryIndex.cachedGames(it) })
+            val lastPlayed = GameSettings.lastPlayedTimes(ctx)
+            synchronized(searchIndex) { searchIndex.replaceAll(games, lastPlayed) }
+            publishGames()
+        }
+    }
+
+    private fun mergeGames(rootGames: List<List<Game>>): Collection<Game> {
+        val games = LinkedHashMap<String, Game>()
+        rootGames.forEach { list ->
+            list.forEach { games.putIfAbsent(it.basedir.name, it) }
+        }
+        return games.values
+    }
+
+    fun setQuery(query: String) {
+        if (query == this.query) return
+        this.query = query
+        publishGames()
+    }
+
+    fun setSortOrder(order: GameSearchIndex.SortOrder) {
+        if (order == sortOrder) return
+        sortOrder = order
+        defaultPreferences.edit().putString(PREF_LIBRARY_SORT, order.name).apply()
+        publishGames()
+    }
+
+    // any thread, the index answers without touching disk
+    private fun publishGames() {
+        val games = synchronized(searchIndex) { searchIndex.query(query, sortOrder) }
+        _installedGames.postValue(games)
+    }
+
+    init {
+        defaultPreferences.registerOnSharedPreferenceChangeListener(preferenceListener)
+        sortOrder = defaultPreferences.getString(PREF_LIBRARY_SORT, null)
+            ?.let { name -> GameSearchIndex.SortOrder.entries.find { it.name == name } }
+            ?: GameSearchIndex.SortOrder.NAME
+    }
+
+    override fun onCleared() {
+        defaultPreferences.unregisterOnSharedPreferenceChangeListener(preferenceListener)
+        watcher.stop()
+    }
+
     fun setSelectedGame(game: Game) {
         _selectedItem.value = game
     }
 
     fun startEngine(ctx: Context, game: Game) {
         game.startEngine(ctx)
+        // picks up the new launch time for sorting by last played
+        val lastPlayed = game.lastPlayed
+        synchronized(searchIndex) { searchIndex.put(game, lastPlayed) }
+        publishGames()
+    }
+
+    companion object {
+        private const val RELOAD_DELAY_MS = 100L
+        private const val UPDATE_DELAY_MS = 500L
+        private const val MAX_PENDING_CHANGES = 64
+        private const val SCAN_PARALLELISM = 4
+        private const val PREF_LIBRARY_SORT = "library_sort"
     }
 }
@@ -3,12 +3,18 @@ package su.xash.engine.ui.settings
 import android.app.AlertDialog
 import android.os.Bundle
 import android.widget.EditText
+import androidx.lifecycle.lifecycleScope
 import androidx.preference.Preference
 import androidx.preference.PreferenceFragmentCompat
 import su.xash.engine.MainActivity
 import su.xash.engine.R
+import su.xash.engine.model.LibraryRoots
+import su.xash.engine.util.StartupTrace
 import android.content.SharedPreferences
 import android.preference.PreferenceManager
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 class AppSettingsPreferenceFragment() : PreferenceFragmentCompat(),
     SharedPreferences.OnSharedPreferenceChangeListener {
@@ -16,6 +22,7 @@ class AppSettingsPreferenceFragment() : PreferenceFragmentCompat(),
     private lateinit var preferences: SharedPreferences
     private lateinit var gamePathPreference: Preference
     private lateinit var globalArgsPreference: Preference
+    private lateinit var libraryFoldersPreference: Preference
 
     override fun onCreatePreferences(savedInstanceState: Bundle?, rootKey: String?) {
         preferenceManager.sharedPreferencesName = "app_preferences"
@@ -26,14 +33,26 @@ class AppSettingsPreferenceFragment() : PreferenceFragmentCompat(),
 
         gamePathPreference = findPreference("game_path") ?: return
         globalArgsPreference = findPreference("global_arguments") ?: return
+        libraryFoldersPreference = findPreference(LibraryRoots.PREF_LIBRARY_FOLDERS) ?: return
 
         globalArgsPreference.setOnPreferenceClickListener {
             showGlobalArgumentsDialog()
             true
         }
 
+        libraryFoldersPreference.setOnPreferenceClickListener {
+            showLibraryFoldersDialog()
+            true
+        }
+
+        findPreference<Preference>("startup_timeline")?.setOnPreferenceClickListener {
+            showStartupTimelineDialog()
+            true
+        }
+
         updateGamePathSummary()
         updateGlobalArgsSummary()
+        updateLibraryFoldersSummary()
     }
 
     override fun onSharedPreferenceChanged(sharedPreferences: SharedPreferences, key: String?) {
@@ -44,6 +63,9 @@ class AppSettingsPreferenceFragment() : PreferenceFragmentCompat(),
             "global_arguments" -> {
                 updateGlobalArgsSummary()
             }
+            LibraryRoots.PREF_LIBRARY_FOLDERS -> {
+                updateLibraryFoldersSummary()
+            }
         }
     }
 
@@ -93,11 +115,53 @@ class AppSettingsPreferenceFragment() : PreferenceFragmentCompat(),
             .show()
     }
 
+    private fun updateLibraryFoldersSummary() {
+        val folders = LibraryRoots.getFolders(requireContext())
+        if (folders.isEmpty()) {
+            libraryFoldersPreference.summary = "No additional folders"
+        } else {
+            libraryFoldersPreference.summary = folders.joinToString("\n")
+        }
+    }
+
+    private fun showLibraryFoldersDialog() {
+        val editText = EditText(requireContext())
+        editText.setText(LibraryRoots.getFolders(requireContext()).joinToString("\n"))
+        editText.hint = "/storage/emulated/0/Games/xash"
+
+        AlertDialog.Builder(requireContext())
+            .setTitle("Additional Game Folders")
+            .setMessage("One folder per line. Folders listed first win when a mod is found in several places")
+            .setView(editText)
+            .setPositiveButton("OK") { dialog, which ->
+                val folders = editText.text.toString().lines()
+                    .map { it.trim() }.filter { it.isNotEmpty() }
+                preferences.edit()
+                    .putString(LibraryRoots.PREF_LIBRARY_FOLDERS, folders.joinToString("\n")).commit()
+                updateLibraryFoldersSummary()
+            }
+            .setNegativeButton("Cancel", null)
+            .show()
+    }
+
+    private fun showStartupTimelineDialog() {
+        lifecycleScope.launch {
+            val history = withContext(Dispatchers.IO) { StartupTrace.history(requireContext()) }
+
+            AlertDialog.Builder(requireContext())
+                .setTitle(R.string.startup_timeline)
+                .setMessage(history.ifEmpty { "No launches recorded yet" })
+                .setPositiveButton("OK", null)
+                .show()
+        }
+    }
+
     override fun onResume() {
         super.onResume()
         preferences.registerOnSharedPreferenceChangeListener(this)
         updateGamePathSummary()
         updateGlobalArgsSummary()
+        updateLibraryFoldersSummary()
     }
 
     override fun onPause() {
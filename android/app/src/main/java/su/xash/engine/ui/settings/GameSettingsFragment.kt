@@ -1,12 +1,18 @@
 package su.xash.engine.ui.settings
 
+import android.graphics.Bitmap
 import android.os.Bundle
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
 import androidx.fragment.app.Fragment
 import androidx.fragment.app.activityViewModels
+import androidx.lifecycle.lifecycleScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import su.xash.engine.databinding.FragmentGameSettingsBinding
+import su.xash.engine.model.ImageCache
 import su.xash.engine.ui.library.LibraryViewModel
 
 class GameSettingsFragment : Fragment() {
@@ -14,6 +20,8 @@ class GameSettingsFragment : Fragment() {
 	private val binding get() = _binding!!
 
 	private val libraryViewModel: LibraryViewModel by activityViewModels()
+	private var icon: Bitmap? = null
+	private var cover: Bitmap? = null
 
 	override fun onCreateView(
 		inflater: LayoutInflater, container: ViewGroup?, savedInstanceState: Bundle?
@@ -29,20 +37,29 @@ class GameSettingsFragment : Fragment() {
 
 		binding.gameCard.apply {
 			gameTitle.text = game.title
+			gameIcon.visibility = View.GONE
+			gameCover.visibility = View.GONE
+			buttonsContainer.visibility = View.GONE
+		}
 
-			if (game.icon != null) {
-				gameIcon.setImageBitmap(game.icon)
-			} else {
-				gameIcon.visibility = View.GONE
+		// usually already loaded by the library card
+		viewLifecycleOwner.lifecycleScope.launch {
+			withContext(Dispatchers.IO) {
+				game.icon.load()
+				game.cover.load()
 			}
 
-			if (game.cover != null) {
-				gameCover.setImageBitmap(game.cover)
-			} else {
-				gameCover.visibility = View.GONE
-			}
+			binding.gameCard.apply {
+				icon = game.icon.acquire()?.also {
+					gameIcon.setImageBitmap(it)
+					gameIcon.visibility = View.VISIBLE
+				}
 
-			buttonsContainer.visibility = View.GONE
+				cover = game.cover.acquire()?.also {
+					gameCover.setImageBitmap(it)
+					gameCover.visibility = View.VISIBLE
+				}
+			}
 		}
 
 		childFragmentManager.beginTransaction()
@@ -53,5 +70,9 @@ class GameSettingsFragment : Fragment() {
 	override fun onDestroyView() {
 		super.onDestroyView()
 		_binding = null
+		icon?.let { ImageCache.release(it) }
+		cover?.let { ImageCache.release(it) }
+		icon = null
+		cover = null
 	}
 }
@@ -9,7 +9,7 @@ import su.xash.engine.model.Game
 
 class GameSettingsPreferenceFragment(val game: Game) : PreferenceFragmentCompat() {
 	override fun onCreatePreferences(savedInstanceState: Bundle?, rootKey: String?) {
-		preferenceManager.sharedPreferencesName = game.basedir.name;
+		preferenceManager.preferenceDataStore = game.settings
 		setPreferencesFromResource(R.xml.game_preferences, rootKey);
 
 		val packageList = findPreference<ListPreference>("package_name")!!
@@ -0,0 +1,337 @@
+package su.xash.engine.util
+
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.util.Locale
+import java.util.zip.DataFormatException
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+
+/**
+ * Read-only view of a PAK, PK3 (ZIP) or WAD archive, the formats the engine
+ * mounts from a gamedir in filesystem/pak.c, zip.c and wad.c.
+ *
+ * Only the directory is mapped and parsed when the archive is opened, entry
+ * data is mapped on demand. No file descriptor is kept open, so archives can
+ * be cached and shared between threads. Names are looked up case
+ * insensitively with forward slashes, like the engine does.
+ */
+abstract class Archive protected constructor(val file: File, count: Int) {
+	private val lastModified = file.lastModified()
+	private val length = file.length()
+
+	private val index = HashMap<String, Int>(count * 4 / 3 + 1)
+	private val offsets = LongArray(count)
+	private val sizes = IntArray(count)
+	private val names = arrayOfNulls<String>(count)
+
+	val size get() = index.size
+
+	/** Names of all entries, as stored in the archive. */
+	val entries: List<String> get() = names.filterNotNull()
+
+	/** Whether the file changed since the archive was opened. */
+	val isStale get() = file.lastModified() != lastModified || file.length() != length
+
+	operator fun contains(name: String) = index.containsKey(normalize(name))
+
+	/** Uncompressed size of [name], or -1 if there is no such entry. */
+	fun sizeOf(name: String): Int {
+		val i = index[normalize(name)] ?: return -1
+		return sizes[i]
+	}
+
+	/**
+	 * Contents of [name], or null if there is no such entry. Stored entries
+	 * are mapped straight from the archive, compressed ones are inflated.
+	 */
+	fun read(name: String): ByteBuffer? {
+		val i = index[normalize(name)] ?: return null
+		return read(i)
+	}
+
+	/** Streams [name] without reading it into memory first, or returns null. */
+	fun open(name: String): InputStream? {
+		val i = index[normalize(name)] ?: return null
+		return open(i)
+	}
+
+	protected open fun read(i: Int): ByteBuffer = map(offsets[i], sizes[i].toLong())
+
+	protected open fun open(i: Int): InputStream = BufferInputStream(read(i))
+
+	private fun add(i: Int, name: String, offset: Long, size: Int) {
+		// later duplicates win, same as the engine's binary search on a stable sorted list
+		names[i] = name
+		offsets[i] = offset
+		sizes[i] = size
+		index[normalize(name)] = i
+	}
+
+	private fun map(offset: Long, size: Long): ByteBuffer {
+		if (offset < 0 || size < 0 || offset + size > length) {
+			throw IOException("Entry is outside of $file")
+		}
+		return RandomAccessFile(file, "r").use {
+			it.channel.map(FileChannel.MapMode.READ_ONLY, offset, size)
+		}.order(ByteOrder.LITTLE_ENDIAN)
+	}
+
+	private class Pak(file: File, count: Int) : Archive(file, count)
+
+	private class Wad(file: File, count: Int) : Archive(file, count)
+
+	private class Zip(file: File, count: Int) : Archive(file, count) {
+		val compressed = IntArray(count)
+		val deflated = BooleanArray(count)
+
+		// offsets point at the local header until the entry is first read
+		private val resolved = BooleanArray(count)
+
+		@Synchronized
+		private fun dataOffset(i: Int): Long {
+			if (!resolved[i]) {
+				val header = map(offsets[i], LOCAL_HEADER_SIZE.toLong())
+				if (header.getInt(0) != LOCAL_HEADER_MAGIC) throw IOException("Bad local header in $file")
+				offsets[i] += LOCAL_HEADER_SIZE + header.getShort(26).toUShort().toLong() +
+					header.getShort(28).toUShort().toLong()
+				resolved[i] = true
+			}
+			return offsets[i]
+		}
+
+		override fun read(i: Int): ByteBuffer {
+			val data = map(dataOffset(i), compressed[i].toLong())
+			if (!deflated[i]) return data
+
+			val inflater = Inflater(true)
+			try {
+				val input = ByteArray(compressed[i])
+				data.get(input)
+				inflater.setInput(input)
+				val output = ByteArray(sizes[i])
+				var n = 0
+				while (n < output.size && !inflater.finished()) {
+					val count = inflater.inflate(output, n, output.size - n)
+					if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break
+					n += count
+				}
+				if (n != output.size) throw IOException("Truncated entry in $file")
+				return ByteBuffer.wrap(output).order(ByteOrder.LITTLE_ENDIAN)
+			} catch (e: DataFormatException) {
+				throw IOException("Corrupted entry in $file", e)
+			} finally {
+				inflater.end()
+			}
+		}
+
+		override fun open(i: Int): InputStream {
+			val data = BufferInputStream(map(dataOffset(i), compressed[i].toLong()))
+			return if (deflated[i]) InflaterInputStream(data, Inflater(true)) else data
+		}
+	}
+
+	private class BufferInputStream(private val buffer: ByteBuffer) : InputStream() {
+		override fun read(): Int = if (buffer.hasRemaining()) buffer.get().toInt() and 0xFF else -1
+
+		override fun read(b: ByteArray, off: Int, len: Int): Int {
+			if (len == 0) return 0
+			if (!buffer.hasRemaining()) return -1
+			val n = minOf(len, buffer.remaining())
+			buffer.get(b, off, n)
+			return n
+		}
+
+		override fun skip(n: Long): Long {
+			val count = minOf(n, buffer.remaining().toLong()).coerceAtLeast(0).toInt()
+			(buffer as Buffer).position(buffer.position() + count)
+			return count.toLong()
+		}
+
+		override fun available() = buffer.remaining()
+	}
+
+	companion object {
+		private const val PAK_MAGIC = 0x4B434150 // PACK
+		private const val PAK_ENTRY_SIZE = 64
+		private const val PAK_NAME_SIZE = 56
+		private const val MAX_FILES_IN_PACK = 65536
+
+		private const val WAD2_MAGIC = 0x32444157 // WAD2
+		private const val WAD3_MAGIC = 0x33444157 // WAD3
+		private const val WAD_ENTRY_SIZE = 32
+		private const val WAD_NAME_SIZE = 16
+		private const val MAX_FILES_IN_WAD = 65535
+
+		private const val END_MAGIC = 0x06054B50
+		private const val END_SIZE = 22
+		private const val CENTRAL_MAGIC = 0x02014B50
+		private const val CENTRAL_SIZE = 46
+		private const val LOCAL_HEADER_MAGIC = 0x04034B50
+		private const val LOCAL_HEADER_SIZE = 30
+		private const val MAX_COMMENT_SIZE = 0xFFFF
+
+		// extensions of wad lump types, see wad_types in wad.c
+		private val WAD_TYPES = mapOf(
+			64 to "pal", 65 to "dds", 66 to "lmp", 67 to "mip", 68 to "txt", 70 to "fnt"
+		)
+
+		private val cache = object : LinkedHashMap<String, Archive>(16, 0.75f, true) {
+			override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Archive>?) =
+				size > MAX_CACHED_ARCHIVES
+		}
+		private const val MAX_CACHED_ARCHIVES = 64
+
+		/** Whether [file] has an extension the engine mounts as an archive. */
+		fun isArchive(file: File) = typeOf(file) != null
+
+		/**
+		 * Opens [file] as an archive, reusing the parsed directory of an earlier
+		 * call while the file is unchanged.
+		 */
+		fun open(file: File): Archive {
+			val key = file.absolutePath
+			synchronized(cache) {
+				cache[key]?.let { if (!it.isStale) return it }
+			}
+
+			val archive = when (typeOf(file)) {
+				"pak" -> openPak(file)
+				"pk3" -> openZip(file)
+				"wad" -> openWad(file)
+				else -> throw IOException("Unknown archive type of $file")
+			}
+			synchronized(cache) {
+				cache[key] = archive
+			}
+			return archive
+		}
+
+		private fun typeOf(file: File): String? {
+			return when (val ext = file.extension.lowercase(Locale.ROOT)) {
+				"pak", "pk3", "wad" -> ext
+				else -> null
+			}
+		}
+
+		private fun normalize(name: String) = name.replace('\\', '/').lowercase(Locale.ROOT)
+
+		private fun headerOf(file: File, size: Int): ByteBuffer {
+			if (file.length() < size) throw IOException("$file is too short")
+			return RandomAccessFile(file, "r").use {
+				it.channel.map(FileChannel.MapMode.READ_ONLY, 0, size.toLong())
+			}.order(ByteOrder.LITTLE_ENDIAN)
+		}
+
+		// reads a zero padded name of at most size bytes
+		private fun nameAt(buffer: ByteBuffer, offset: Int, size: Int): String {
+			var length = 0
+			while (length < size && buffer.get(offset + length).toInt() != 0) length++
+			val bytes = ByteArray(length)
+			for (i in 0 until length) bytes[i] = buffer.get(offset + i)
+			return String(bytes, Charsets.ISO_8859_1)
+		}
+
+		private fun openPak(file: File): Archive {
+			val header = headerOf(file, 12)
+			if (header.getInt(0) != PAK_MAGIC) throw IOException("$file is not a pak")
+
+			val dirOffset = header.getInt(4)
+			val dirLength = header.getInt(8)
+			if (dirLength % PAK_ENTRY_SIZE != 0 || dirLength / PAK_ENTRY_SIZE > MAX_FILES_IN_PACK) {
+				throw IOException("Bad directory in $file")
+			}
+
+			val count = dirLength / PAK_ENTRY_SIZE
+			val pak = Pak(file, count)
+			val dir = pak.map(dirOffset.toLong(), dirLength.toLong())
+			for (i in 0 until count) {
+				val at = i * PAK_ENTRY_SIZE
+				pak.add(i, nameAt(dir, at, PAK_NAME_SIZE), dir.getInt(at + PAK_NAME_SIZE).toLong(),
+					dir.getInt(at + PAK_NAME_SIZE + 4))
+			}
+			return pak
+		}
+
+		private fun openWad(file: File): Archive {
+			val header = headerOf(file, 12)
+			val magic = header.getInt(0)
+			if (magic != WAD2_MAGIC && magic != WAD3_MAGIC) throw IOException("$file is not a wad")
+
+			val count = header.getInt(4)
+			if (count < 0 || count > MAX_FILES_IN_WAD) throw IOException("Bad lump count in $file")
+
+			val wad = Wad(file, count)
+			val table = wad.map(header.getInt(8).toLong(), count.toLong() * WAD_ENTRY_SIZE)
+			for (i in 0 until count) {
+				val at = i * WAD_ENTRY_SIZE
+				// compressed lumps were never implemented by the engine either
+				if (table.get(at + 13).toInt() and 2 != 0) continue
+
+				val type = WAD_TYPES[table.get(at + 12).toInt()]
+				val name = nameAt(table, at + 16, WAD_NAME_SIZE)
+				wad.add(i, if (type != null) "$name.$type" else name, table.getInt(at).toLong(),
+					table.getInt(at + 8))
+			}
+			return wad
+		}
+
+		private fun openZip(file: File): Archive {
+			val length = file.length()
+			if (length < END_SIZE) throw IOException("$file is too short")
+
+			// the end of central directory record is followed by a comment of up to 64k
+			val tailSize = minOf(length, (END_SIZE + MAX_COMMENT_SIZE).toLong())
+			val tail = RandomAccessFile(file, "r").use {
+				it.channel.map(FileChannel.MapMode.READ_ONLY, length - tailSize, tailSize)
+			}.order(ByteOrder.LITTLE_ENDIAN)
+
+			var end = tail.limit() - END_SIZE
+			while (end >= 0 && tail.getInt(end) != END_MAGIC) end--
+			if (end < 0) throw IOException("$file is not a zip")
+
+			val count = tail.getShort(end + 10).toUShort().toInt()
+			val dirLength = tail.getInt(end + 12).toUInt().toLong()
+			val dirOffset = tail.getInt(end + 16).toUInt().toLong()
+
+			val zip = Zip(file, count)
+			val dir = zip.map(dirOffset, dirLength)
+			var at = 0
+			for (i in 0 until count) {
+				if (at + CENTRAL_SIZE > dir.limit() || dir.getInt(at) != CENTRAL_MAGIC) {
+					throw IOException("Bad central directory in $file")
+				}
+
+				val flags = dir.getShort(at + 8).toInt()
+				val method = dir.getShort(at + 10).toInt()
+				val compressed = dir.getInt(at + 20)
+				val size = dir.getInt(at + 24)
+				val nameLength = dir.getShort(at + 28).toUShort().toInt()
+				val extraLength = dir.getShort(at + 30).toUShort().toInt()
+				val commentLength = dir.getShort(at + 32).toUShort().toInt()
+				val offset = dir.getInt(at + 42).toUInt().toLong()
+
+				val nameBytes = ByteArray(nameLength)
+				for (j in 0 until nameLength) nameBytes[j] = dir.get(at + CENTRAL_SIZE + j)
+				val name = String(nameBytes, if (flags and 0x800 != 0) Charsets.UTF_8 else Charsets.ISO_8859_1)
+
+				// skip directories, encrypted entries and methods the engine can't read either
+				if (!name.endsWith('/') && flags and 1 == 0 && (method == 0 || method == 8)
+					&& compressed >= 0 && size >= 0
+				) {
+					zip.add(i, name, offset, size)
+					zip.compressed[i] = compressed
+					zip.deflated[i] = method == 8
+				}
+				at += CENTRAL_SIZE + nameLength + extraLength + commentLength
+			}
+			return zip
+		}
+	}
+}
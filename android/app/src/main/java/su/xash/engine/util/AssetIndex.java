@@ -0,0 +1,207 @@
+package su.xash.engine.util;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Directory tree of a package's assets. {@link AssetManager#list(String)} is
+ * slow and allocates on every call, so the tree is walked once per installed
+ * package version, then kept in memory and in a cache file.
+ */
+public final class AssetIndex {
+	private static final String TAG = "AssetIndex";
+	private static final int MAGIC = 0x58415354; // XAST
+	private static final int VERSION = 1;
+	private static final String[] EMPTY = new String[0];
+
+	private static final Map<String, AssetIndex> sIndexes = new HashMap<>();
+
+	private final long mStamp;
+	// directory path, "" for the root, to the names of its entries
+	private final Map<String, String[]> mDirs;
+
+	private AssetIndex(long stamp, Map<String, String[]> dirs) {
+		mStamp = stamp;
+		mDirs = dirs;
+	}
+
+	/** Index of {@code packageName} if it was already built by this process. */
+	public static synchronized AssetIndex find(String packageName) {
+		// a package update kills the processes using it, so this can't go stale
+		return sIndexes.get(packageName);
+	}
+
+	/**
+	 * Index of the assets of {@code packageName}, read through {@code am}. Only
+	 * walks the assets if the package changed since the index was built.
+	 */
+	public static synchronized AssetIndex get(Context ctx, String packageName, AssetManager am) {
+		AssetIndex index = sIndexes.get(packageName);
+		if (index != null) {
+			return index;
+		}
+
+		long stamp = stampOf(ctx, packageName);
+		File file = new File(ctx.getCacheDir(), "assets-" + packageName + ".idx");
+		index = stamp != 0 ? load(file, stamp) : null;
+		if (index == null) {
+			index = new AssetIndex(stamp, walk(am));
+			if (stamp != 0) {
+				index.save(file);
+			}
+		}
+
+		sIndexes.put(packageName, index);
+		return index;
+	}
+
+	/** Entries of the directory at {@code path}, empty for files and missing paths. */
+	public String[] list(String path) {
+		String[] names = mDirs.get(normalize(path));
+		return names != null ? names.clone() : EMPTY;
+	}
+
+	/**
+	 * Every entry below {@code path} in one array, as paths relative to the
+	 * asset root. Directories end with a slash.
+	 */
+	public String[] tree(String path) {
+		List<String> result = new ArrayList<>();
+		collect(normalize(path), result);
+		return result.toArray(EMPTY);
+	}
+
+	private void collect(String dir, List<String> result) {
+		String[] names = mDirs.get(dir);
+		if (names == null) {
+			return;
+		}
+
+		String prefix = dir.isEmpty() ? "" : dir + "/";
+		for (String name : names) {
+			String path = prefix + name;
+			if (mDirs.containsKey(path)) {
+				result.add(path + "/");
+				collect(path, result);
+			} else {
+				result.add(path);
+			}
+		}
+	}
+
+	private static String normalize(String path) {
+		int start = 0;
+		int end = path.length();
+		while (start < end && path.charAt(start) == '/') start++;
+		while (end > start && path.charAt(end - 1) == '/') end--;
+		return path.substring(start, end);
+	}
+
+	// an installed package only changes its assets on update
+	private static long stampOf(Context ctx, String packageName) {
+		try {
+			PackageInfo info = ctx.getPackageManager().getPackageInfo(packageName, 0);
+			return info.lastUpdateTime;
+		} catch (PackageManager.NameNotFoundException e) {
+			return 0;
+		}
+	}
+
+	// AssetManager can't tell files from directories, so anything with entries is a directory
+	private static Map<String, String[]> walk(AssetManager am) {
+		Map<String, String[]> dirs = new HashMap<>();
+		List<String> pending = new ArrayList<>();
+		pending.add("");
+
+		while (!pending.isEmpty()) {
+			String dir = pending.remove(pending.size() - 1);
+			String[] names;
+			try {
+				names = am.list(dir);
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			if (names == null || names.length == 0) {
+				continue;
+			}
+
+			Arrays.sort(names);
+			dirs.put(dir, names);
+			for (String name : names) {
+				pending.add(dir.isEmpty() ? name : dir + "/" + name);
+			}
+		}
+
+		return dirs;
+	}
+
+	private static AssetIndex load(File file, long stamp) {
+		if (!file.exists()) {
+			return null;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != stamp) {
+				return null;
+			}
+
+			int count = in.readInt();
+			Map<String, String[]> dirs = new HashMap<>(count * 4 / 3 + 1);
+			for (int i = 0; i < count; i++) {
+				String dir = in.readUTF();
+				String[] names = new String[in.readInt()];
+				for (int j = 0; j < names.length; j++) {
+					names[j] = in.readUTF();
+				}
+				dirs.put(dir, names);
+			}
+			return new AssetIndex(stamp, dirs);
+		} catch (IOException e) {
+			Log.w(TAG, "Discarding asset index " + file, e);
+			return null;
+		}
+	}
+
+	private void save(File file) {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(mStamp);
+			out.writeInt(mDirs.size());
+			for (Map.Entry<String, String[]> entry : mDirs.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue().length);
+				for (String name : entry.getValue()) {
+					out.writeUTF(name);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			tmp.delete();
+			return;
+		}
+
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+		}
+	}
+}
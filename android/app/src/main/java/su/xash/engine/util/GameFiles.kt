@@ -0,0 +1,93 @@
+package su.xash.engine.util
+
+import android.util.Log
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Files of a gamedir as the engine sees them: loose files first, then the
+ * wads, pk3s and paks of the gamedir, each later one in sorted order
+ * overriding the earlier ones (see FS_AddGameDirectory).
+ */
+class GameFiles private constructor(val dir: File) {
+	private val dirModified = dir.lastModified()
+
+	/** Archives of the gamedir, most important first. */
+	val archives: List<File>
+
+	init {
+		val files = dir.listFiles()?.filter { it.isFile && Archive.isArchive(it) }?.sortedBy { it.name }
+			?: emptyList()
+		val byType = files.groupBy { it.extension.lowercase() }
+		archives = listOf("wad", "pk3", "pak").flatMap { byType[it].orEmpty().asReversed() }
+	}
+
+	/** The loose file or archive [path] would be loaded from, or null. */
+	fun find(path: String): File? {
+		val loose = looseFile(path)
+		if (loose.isFile) return loose
+		return findArchive(path)?.file
+	}
+
+	fun exists(path: String) = find(path) != null
+
+	/** Contents of [path], mapped where possible. */
+	fun read(path: String): ByteBuffer {
+		val loose = looseFile(path)
+		if (loose.isFile) {
+			return FileInputStream(loose).use {
+				val channel = it.channel
+				channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+			}
+		}
+		return findArchive(path)?.read(path) ?: throw FileNotFoundException("$path in $dir")
+	}
+
+	fun open(path: String): InputStream {
+		val loose = looseFile(path)
+		if (loose.isFile) return FileInputStream(loose)
+		return findArchive(path)?.open(path) ?: throw FileNotFoundException("$path in $dir")
+	}
+
+	private fun looseFile(path: String) = File(dir, path.replace('\\', '/'))
+
+	private fun findArchive(path: String): Archive? {
+		for (file in archives) {
+			val archive = try {
+				Archive.open(file)
+			} catch (e: IOException) {
+				Log.w(TAG, "Skipping broken archive $file", e)
+				continue
+			}
+			if (path in archive) return archive
+		}
+		return null
+	}
+
+	companion object {
+		private const val TAG = "GameFiles"
+
+		private val cache = HashMap<String, GameFiles>()
+
+		/**
+		 * Files of [dir]. The archive list is reused until the gamedir itself
+		 * changes, the archives are revalidated on every lookup.
+		 */
+		fun of(dir: File): GameFiles {
+			val key = dir.absolutePath
+			synchronized(cache) {
+				cache[key]?.let { if (it.dirModified == dir.lastModified()) return it }
+			}
+			val files = GameFiles(dir)
+			synchronized(cache) {
+				cache[key] = files
+			}
+			return files
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package su.xash.engine.util
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import java.io.EOFException
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Decoder for Windows ICO and CUR files. Only the directory entry closest
+ * to the requested size is decoded, BMP payloads natively and PNG ones
+ * through [BitmapFactory].
+ *
+ * A reader can be reused, the ARGB [pixels] of the last decoded entry are
+ * kept in a buffer that only grows.
+ */
+class IcoReader {
+	private class Entry(
+		val width: Int,
+		val height: Int,
+		val bitCount: Int,
+		val offset: Int,
+		val size: Int,
+	)
+
+	var pixels = IntArray(0)
+		private set
+	var width = 0
+		private set
+	var height = 0
+		private set
+
+	/**
+	 * Decodes the entry of [buffer] that best fits [reqSize] pixels into
+	 * [pixels], row by row with a stride of [width].
+	 */
+	fun decode(buffer: ByteBuffer, reqSize: Int) {
+		val data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+		val entry = pick(entries(data), reqSize) ?: throw IOException("Icon has no images")
+		if (entry.offset < 0 || entry.size < 0 || entry.offset.toLong() + entry.size > data.limit()) {
+			throw EOFException("Truncated icon image")
+		}
+
+		if (isPng(data, entry.offset)) {
+			decodePng(data, entry, reqSize)
+		} else {
+			decodeBmp(data, entry.offset, entry.offset + entry.size)
+		}
+	}
+
+	private fun allocate(width: Int, height: Int) {
+		this.width = width
+		this.height = height
+		if (pixels.size < width * height) pixels = IntArray(width * height)
+	}
+
+	private fun decodePng(data: ByteBuffer, entry: Entry, reqSize: Int) {
+		val bytes: ByteArray
+		val offset: Int
+		if (data.hasArray()) {
+			bytes = data.array()
+			offset = data.arrayOffset() + entry.offset
+		} else {
+			bytes = ByteArray(entry.size)
+			for (i in 0 until entry.size) bytes[i] = data.get(entry.offset + i)
+			offset = 0
+		}
+
+		val options = BitmapFactory.Options()
+		options.inJustDecodeBounds = true
+		BitmapFactory.decodeByteArray(bytes, offset, entry.size, options)
+		if (options.outWidth <= 0 || options.outHeight <= 0) throw IOException("Broken PNG in icon")
+
+		// 256px entries are usually PNG, subsample those to what is actually needed
+		var sampleSize = 1
+		while (reqSize > 0 && maxOf(options.outWidth, options.outHeight) / (sampleSize * 2) >= reqSize) {
+			sampleSize *= 2
+		}
+		options.inJustDecodeBounds = false
+		options.inSampleSize = sampleSize
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888
+		val bitmap = BitmapFactory.decodeByteArray(bytes, offset, entry.size, options)
+			?: throw IOException("Broken PNG in icon")
+		try {
+			allocate(bitmap.width, bitmap.height)
+			bitmap.getPixels(pixels, 0, width, 0, 0, width, height)
+		} finally {
+			bitmap.recycle()
+		}
+	}
+
+	private fun decodeBmp(data: ByteBuffer, start: Int, end: Int) {
+		if (end - start < BMP_HEADER_SIZE) throw EOFException("Truncated icon image")
+
+		val headerSize = data.getInt(start)
+		val w = data.getInt(start + 4)
+		// the height covers both the color and the transparency mask
+		val h = data.getInt(start + 8) / 2
+		val bitCount = data.getShort(start + 14).toInt()
+		val compression = data.getInt(start + 16)
+		val colorsUsed = data.getInt(start + 32)
+
+		if (headerSize < BMP_HEADER_SIZE || w !in 1..MAX_SIZE || h !in 1..MAX_SIZE) {
+			throw IOException("Bad icon image header")
+		}
+		if (bitCount !in intArrayOf(1, 4, 8, 16, 24, 32)) {
+			throw IOException("Unsupported icon bit count $bitCount")
+		}
+		if (compression != BI_RGB && !(compression == BI_BITFIELDS && bitCount == 32)) {
+			throw IOException("Unsupported icon compression $compression")
+		}
+
+		var at = start + headerSize
+		// 32 bit bitfields are always BGRA in icons, skip the masks
+		if (compression == BI_BITFIELDS && headerSize == BMP_HEADER_SIZE) at += 12
+
+		val palette = IntArray(if (bitCount <= 8) 1 shl bitCount else 0)
+		if (palette.isNotEmpty()) {
+			val count = if (colorsUsed in 1..palette.size) colorsUsed else palette.size
+			if (at + count * 4 > end) throw EOFException("Truncated icon palette")
+			for (i in 0 until count) palette[i] = data.getInt(at + i * 4) or OPAQUE
+			at += count * 4
+		}
+
+		val stride = (w * bitCount + 31) / 32 * 4
+		if (at.toLong() + stride.toLong() * h > end) throw EOFException("Truncated icon image")
+		allocate(w, h)
+
+		var hasAlpha = false
+		for (y in 0 until h) {
+			// rows are stored bottom-up
+			val row = at + (h - 1 - y) * stride
+			val out = y * w
+			when (bitCount) {
+				32 -> for (x in 0 until w) {
+					val c = data.getInt(row + x * 4)
+					if (c ushr 24 != 0) hasAlpha = true
+					pixels[out + x] = c
+				}
+
+				24 -> for (x in 0 until w) {
+					val p = row + x * 3
+					pixels[out + x] = OPAQUE or (data.get(p + 2).toInt() and 0xFF shl 16) or
+						(data.get(p + 1).toInt() and 0xFF shl 8) or (data.get(p).toInt() and 0xFF)
+				}
+
+				16 -> for (x in 0 until w) {
+					// X1R5G5B5
+					val c = data.getShort(row + x * 2).toInt()
+					val r = c shr 10 and 0x1F
+					val g = c shr 5 and 0x1F
+					val b = c and 0x1F
+					pixels[out + x] = OPAQUE or (r shl 3 or (r shr 2) shl 16) or
+						(g shl 3 or (g shr 2) shl 8) or (b shl 3 or (b shr 2))
+				}
+
+				else -> {
+					val perByte = 8 / bitCount
+					val mask = (1 shl bitCount) - 1
+					for (x in 0 until w) {
+						val byte = data.get(row + x / perByte).toInt()
+						val shift = 8 - bitCount * (x % perByte + 1)
+						pixels[out + x] = palette[byte shr shift and mask]
+					}
+				}
+			}
+		}
+		if (hasAlpha) return
+
+		// no alpha channel, transparency comes from the 1 bit mask after the colors
+		val maskAt = at + stride * h
+		val maskStride = (w + 31) / 32 * 4
+		if (maskAt.toLong() + maskStride.toLong() * h > end) {
+			for (i in 0 until w * h) pixels[i] = pixels[i] or OPAQUE
+			return
+		}
+		for (y in 0 until h) {
+			val row = maskAt + (h - 1 - y) * maskStride
+			val out = y * w
+			for (x in 0 until w) {
+				val transparent = data.get(row + x / 8).toInt() shr (7 - x % 8) and 1 != 0
+				pixels[out + x] = if (transparent) 0 else pixels[out + x] or OPAQUE
+			}
+		}
+	}
+
+	companion object {
+		private const val TYPE_ICON = 1
+		private const val TYPE_CURSOR = 2
+		private const val DIR_HEADER_SIZE = 6
+		private const val DIR_ENTRY_SIZE = 16
+		private const val BMP_HEADER_SIZE = 40
+		private const val BI_RGB = 0
+		private const val BI_BITFIELDS = 3
+		private const val MAX_SIZE = 1024
+		private const val OPAQUE = 0xFF shl 24
+
+		/** Whether [buffer] starts with an icon or cursor directory. */
+		fun isIco(buffer: ByteBuffer): Boolean {
+			if (buffer.remaining() < DIR_HEADER_SIZE) return false
+			val data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+			val type = data.getShort(2).toInt()
+			return data.getShort(0).toInt() == 0 && (type == TYPE_ICON || type == TYPE_CURSOR) &&
+				data.getShort(4) > 0
+		}
+
+		/** Parses the directory only. [buffer] has to be little endian and start at the file. */
+		private fun entries(buffer: ByteBuffer): List<Entry> {
+			if (!isIco(buffer)) throw IOException("Not an icon")
+			val cursor = buffer.getShort(2).toInt() == TYPE_CURSOR
+			val count = buffer.getShort(4).toInt()
+			if (DIR_HEADER_SIZE + count * DIR_ENTRY_SIZE > buffer.limit()) {
+				throw EOFException("Truncated icon directory")
+			}
+
+			return List(count) { i ->
+				val at = DIR_HEADER_SIZE + i * DIR_ENTRY_SIZE
+				// a size of 0 means 256, cursors keep their hotspot where icons have the bit count
+				Entry(
+					(buffer.get(at).toInt() and 0xFF).let { if (it == 0) 256 else it },
+					(buffer.get(at + 1).toInt() and 0xFF).let { if (it == 0) 256 else it },
+					if (cursor) 0 else buffer.getShort(at + 6).toInt(),
+					buffer.getInt(at + 12),
+					buffer.getInt(at + 8),
+				)
+			}
+		}
+
+		/**
+		 * The smallest entry at least [reqSize] pixels large, the deepest one
+		 * among equals. Falls back to the largest entry.
+		 */
+		private fun pick(entries: List<Entry>, reqSize: Int): Entry? {
+			val order = compareBy<Entry> { maxOf(it.width, it.height) }.thenByDescending { it.bitCount }
+			return entries.filter { maxOf(it.width, it.height) >= reqSize }.minWithOrNull(order)
+				?: entries.maxWithOrNull(compareBy<Entry> { maxOf(it.width, it.height) }.thenBy { it.bitCount })
+		}
+
+		private fun isPng(data: ByteBuffer, at: Int): Boolean {
+			return data.limit() - at >= 4 && data.getInt(at) == 0x474E5089 // \x89PNG
+		}
+	}
+}
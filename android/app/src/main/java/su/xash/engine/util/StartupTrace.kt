@@ -0,0 +1,144 @@
+package su.xash.engine.util
+
+import android.content.Context
+import android.os.Build
+import android.os.Process
+import android.os.SystemClock
+import android.os.Trace
+import android.util.Log
+import java.io.File
+import java.io.IOException
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import java.util.concurrent.Executors
+
+/**
+ * Timeline of the launcher's cold start. Every section and mark shows up in
+ * systrace/perfetto through [Trace] and is also recorded relative to process
+ * start. The timeline of each launch is kept in a small text file, see
+ * [history], so startup regressions can be compared across launches.
+ *
+ * Only the first occurrence of a name is recorded, and nothing after
+ * [STARTUP_WINDOW_MS], later reloads are not part of startup.
+ */
+object StartupTrace {
+	private const val TAG = "StartupTrace"
+
+	const val APP_INIT = "app_init"
+	const val ACTIVITY_CREATE = "activity_create"
+	const val FIRST_FRAME = "first_frame"
+	const val LIBRARY_SCAN = "library_scan"
+	const val FIRST_CARD = "first_card_bound"
+	const val COVERS_READY = "covers_ready"
+
+	private const val FILE_NAME = "startup_timeline.txt"
+	private const val MAX_LAUNCHES = 10
+	private const val STARTUP_WINDOW_MS = 60_000L
+
+	private class Event(val name: String, val start: Long, var duration: Long = -1)
+
+	private val origin = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+		Process.getStartElapsedRealtime()
+	} else {
+		SystemClock.elapsedRealtime()
+	}
+	private val header = "Launch " +
+		SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(Date(System.currentTimeMillis()))
+
+	private val events = ArrayList<Event>()
+	private val open = HashMap<String, Event>()
+	private val writer = Executors.newSingleThreadExecutor()
+	private var file: File? = null
+
+	/** Sets where timelines are kept, call as early as possible. */
+	fun attach(ctx: Context) {
+		file = File(ctx.filesDir, FILE_NAME)
+	}
+
+	/** Traces [block] as a section on the calling thread. */
+	inline fun <T> section(name: String, block: () -> T): T {
+		Trace.beginSection(name)
+		val start = now()
+		try {
+			return block()
+		} finally {
+			Trace.endSection()
+			record(name, start, now() - start)
+		}
+	}
+
+	/** Starts a section that may end on another thread, see [end]. */
+	@Synchronized
+	fun begin(name: String) {
+		if (!isRecording(name) || name in open) return
+		open[name] = Event(name, now())
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) Trace.beginAsyncSection(name, 0)
+	}
+
+	@Synchronized
+	fun end(name: String) {
+		val event = open.remove(name) ?: return
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) Trace.endAsyncSection(name, 0)
+		record(event.name, event.start, now() - event.start)
+	}
+
+	/** Records that [name] happened now. */
+	fun mark(name: String) {
+		if (!isRecording(name)) return
+		Trace.beginSection(name)
+		Trace.endSection()
+		record(name, now(), -1)
+	}
+
+	@PublishedApi
+	internal fun now() = SystemClock.elapsedRealtime() - origin
+
+	@PublishedApi
+	@Synchronized
+	internal fun record(name: String, start: Long, duration: Long) {
+		if (!isRecording(name)) return
+		events.add(Event(name, start, duration))
+		save(format())
+	}
+
+	private fun isRecording(name: String): Boolean {
+		return now() < STARTUP_WINDOW_MS && synchronized(this) { events.none { it.name == name } }
+	}
+
+	private fun format(): String {
+		return buildString {
+			append(header).append('\n')
+			events.sortedBy { it.start }.forEach {
+				append(String.format(Locale.US, "%7d ms  %s", it.start, it.name))
+				if (it.duration >= 0) append(String.format(Locale.US, " (%d ms)", it.duration))
+				append('\n')
+			}
+		}
+	}
+
+	// rewrites this launch's block, the newest launch comes first
+	private fun save(block: String) {
+		val file = file ?: return
+		writer.execute {
+			try {
+				val launches = readLaunches(file).filter { !it.startsWith(header + '\n') }
+				val tmp = File(file.path + ".tmp")
+				tmp.writeText((listOf(block) + launches).take(MAX_LAUNCHES).joinToString("\n"))
+				if (!tmp.renameTo(file)) tmp.delete()
+			} catch (e: IOException) {
+				Log.w(TAG, "Failed to save startup timeline", e)
+			}
+		}
+	}
+
+	private fun readLaunches(file: File): List<String> {
+		if (!file.exists()) return emptyList()
+		return file.readText().split("\n\n").filter { it.isNotBlank() }.map { it.trimEnd() + '\n' }
+	}
+
+	/** Timelines of the last launches, newest first, as readable text. Reads a file. */
+	fun history(ctx: Context): String {
+		return readLaunches(File(ctx.filesDir, FILE_NAME)).joinToString("\n")
+	}
+}
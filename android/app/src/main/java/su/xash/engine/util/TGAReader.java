@@ -14,7 +14,18 @@
 
 package su.xash.engine.util;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public final class TGAReader {
 
@@ -29,59 +40,163 @@ public final class TGAReader {
 		return (buffer[14] & 0xFF) | (buffer[15] & 0xFF) << 8;
 	}
 
+	/**
+	 * Largest sample size that keeps the decoded image at least
+	 * {@code reqWidth} x {@code reqHeight}.
+	 */
+	public static int sampleSizeFor(int width, int height, int reqWidth, int reqHeight) {
+		int sampleSize = 1;
+		if (reqWidth <= 0 || reqHeight <= 0) return sampleSize;
+		while (width / (sampleSize + 1) >= reqWidth && height / (sampleSize + 1) >= reqHeight) {
+			sampleSize++;
+		}
+		return sampleSize;
+	}
+
+	public static int getWidth(ByteBuffer buffer) {
+		int p = buffer.position();
+		return (buffer.get(p + 12) & 0xFF) | (buffer.get(p + 13) & 0xFF) << 8;
+	}
+
+	public static int getHeight(ByteBuffer buffer) {
+		int p = buffer.position();
+		return (buffer.get(p + 14) & 0xFF) | (buffer.get(p + 15) & 0xFF) << 8;
+	}
+
 	public static int[] read(byte[] buffer, Order order) throws IOException {
+		int width = getWidth(buffer);
+		int[] pixels = new int[width * getHeight(buffer)];
+		read(buffer, order, pixels, 0, width, null);
+		return pixels;
+	}
 
-		// header
-//		int idFieldLength = buffer[0] & 0xFF;
-//		int colormapType = buffer[1] & 0xFF;
-		int type = buffer[2] & 0xFF;
-		int colormapOrigin = (buffer[3] & 0xFF) | (buffer[4] & 0xFF) << 8;
-		int colormapLength = (buffer[5] & 0xFF) | (buffer[6] & 0xFF) << 8;
-		int colormapDepth = buffer[7] & 0xFF;
-//		int originX = (buffer[8] & 0xFF) | (buffer[9] & 0xFF) << 8; // unsupported
-//		int originY = (buffer[10] & 0xFF) | (buffer[11] & 0xFF) << 8; // unsupported
+	/**
+	 * Decodes into a caller supplied array, row {@code i} of the image starting
+	 * at {@code pixels[offset + stride * i]}. Nothing is allocated on the heap.
+	 */
+	public static void read(byte[] buffer, Order order, int[] pixels, int offset, int stride, Decoder decoder) throws IOException {
+		if (decoder == null) decoder = new Decoder();
+		decoder.open(buffer);
+		decoder.read(order, pixels, offset, stride);
+	}
+
+	/**
+	 * Same as {@link #read(byte[], Order, int[], int, int, Decoder)}, {@code offset}
+	 * and {@code stride} being relative to the buffer start. Direct buffers are
+	 * filled row by row through a row buffer kept in {@code decoder}.
+	 */
+	public static void read(byte[] buffer, Order order, IntBuffer pixels, int offset, int stride, Decoder decoder) throws IOException {
+		if (decoder == null) decoder = new Decoder();
+		decoder.open(buffer);
+		decoder.read(order, pixels, offset, stride);
+	}
+
+	public static int[] read(ByteBuffer buffer, Order order) throws IOException {
 		int width = getWidth(buffer);
-		int height = getHeight(buffer);
-		int depth = buffer[16] & 0xFF;
-		int descriptor = buffer[17] & 0xFF;
+		int[] pixels = new int[width * getHeight(buffer)];
+		read(buffer, order, pixels, 0, width, null);
+		return pixels;
+	}
 
-		int[] pixels;
+	public static void read(ByteBuffer buffer, Order order, int[] pixels, int offset, int stride, Decoder decoder) throws IOException {
+		if (decoder == null) decoder = new Decoder();
+		decoder.open(buffer);
+		decoder.read(order, pixels, offset, stride);
+	}
 
-		// data
-		switch (type) {
-			case COLORMAP: {
-				int imageDataOffset = 18 + (colormapDepth / 8) * colormapLength;
-				pixels = createPixelsFromColormap(width, height, colormapDepth, buffer, imageDataOffset, buffer, colormapOrigin, descriptor, order);
+	public static void read(ByteBuffer buffer, Order order, IntBuffer pixels, int offset, int stride, Decoder decoder) throws IOException {
+		if (decoder == null) decoder = new Decoder();
+		decoder.open(buffer);
+		decoder.read(order, pixels, offset, stride);
+	}
+
+	/**
+	 * Reads and validates only the 18 byte header. Pixel data isn't touched,
+	 * but the buffer must be long enough to hold it.
+	 */
+	public static Info probe(byte[] buffer) throws IOException {
+		if (buffer.length < HEADER_SIZE) {
+			throw new EOFException("Truncated TGA header");
+		}
+		return new Info(buffer, 0, buffer.length);
+	}
+
+	public static Info probe(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < HEADER_SIZE) {
+			throw new EOFException("Truncated TGA header");
+		}
+		byte[] header = new byte[HEADER_SIZE];
+		for (int i = 0, p = buffer.position(); i < HEADER_SIZE; i++) {
+			header[i] = buffer.get(p + i);
+		}
+		return new Info(header, 0, buffer.remaining());
+	}
+
+	/** Consumes the header only. The stream length is unknown, so truncation isn't checked. */
+	public static Info probe(InputStream in) throws IOException {
+		return new Info(readHeader(in), 0, -1);
+	}
+
+	public static Info probe(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			return new Info(readHeader(in), 0, file.length());
+		}
+	}
+
+	private static byte[] readHeader(InputStream in) throws IOException {
+		byte[] header = new byte[HEADER_SIZE];
+		for (int done = 0; done < HEADER_SIZE; ) {
+			int count = in.read(header, done, HEADER_SIZE - done);
+			if (count < 0) {
+				throw new EOFException("Truncated TGA header");
 			}
-			break;
+			done += count;
+		}
+		return header;
+	}
+
+	// validates what the decoder supports and returns the pixel format
+	private static int checkFormat(int type, int depth, int colormapType, int colormapLength, int colormapDepth) throws IOException {
+		if (colormapType > 1) {
+			throw new IOException("Unsupported colormap type: " + colormapType);
+		}
+		switch (type) {
+			case COLORMAP:
+			case COLORMAP_RLE:
+				if (colormapType != 1 || colormapLength == 0) {
+					throw new IOException("Missing colormap");
+				}
+				if (depth != 8) {
+					throw new IOException("Unsupported depth:" + depth);
+				}
+				if (colormapDepth != 15 && colormapDepth != 16 && colormapDepth != 24 && colormapDepth != 32) {
+					throw new IOException("Unsupported depth:" + colormapDepth);
+				}
+				return INDEXED;
 			case RGB:
-				pixels = createPixelsFromRGB(width, height, depth, buffer, 18, descriptor, order);
-				break;
+			case RGB_RLE:
+				if (depth != 24 && depth != 32) {
+					throw new IOException("Unsupported depth:" + depth);
+				}
+				return depth == 24 ? BGR24 : BGRA32;
 			case GRAYSCALE:
-				pixels = createPixelsFromGrayscale(width, height, depth, buffer, 18, descriptor, order);
-				break;
-			case COLORMAP_RLE: {
-				int imageDataOffset = 18 + (colormapDepth / 8) * colormapLength;
-				byte[] decodeBuffer = decodeRLE(width, height, depth, buffer, imageDataOffset);
-				pixels = createPixelsFromColormap(width, height, colormapDepth, decodeBuffer, 0, buffer, colormapOrigin, descriptor, order);
-			}
-			break;
-			case RGB_RLE: {
-				byte[] decodeBuffer = decodeRLE(width, height, depth, buffer, 18);
-				pixels = createPixelsFromRGB(width, height, depth, decodeBuffer, 0, descriptor, order);
-			}
-			break;
-			case GRAYSCALE_RLE: {
-				byte[] decodeBuffer = decodeRLE(width, height, depth, buffer, 18);
-				pixels = createPixelsFromGrayscale(width, height, depth, decodeBuffer, 0, descriptor, order);
-			}
-			break;
+			case GRAYSCALE_RLE:
+				if (depth != 8 && depth != 16) {
+					throw new IOException("Unsupported depth:" + depth);
+				}
+				return depth == 8 ? GRAY8 : GRAY16;
 			default:
 				throw new IOException("Unsupported image type: " + type);
 		}
+	}
 
-		return pixels;
+	// go through Buffer, the covariant overrides are missing on older Android releases
+	private static void position(Buffer buffer, int position) {
+		buffer.position(position);
+	}
 
+	private static void limit(Buffer buffer, int limit) {
+		buffer.limit(limit);
 	}
 
 	private static final int COLORMAP = 1;
@@ -94,482 +209,861 @@ public final class TGAReader {
 	private static final int RIGHT_ORIGIN = 0x10;
 	private static final int UPPER_ORIGIN = 0x20;
 
-	private static byte[] decodeRLE(int width, int height, int depth, byte[] buffer, int offset) {
-		int elementCount = depth / 8;
-		byte[] elements = new byte[elementCount];
-		int decodeBufferLength = elementCount * width * height;
-		byte[] decodeBuffer = new byte[decodeBufferLength];
-		int decoded = 0;
-		while (decoded < decodeBufferLength) {
-			int packet = buffer[offset++] & 0xFF;
-			if ((packet & 0x80) != 0) { // RLE
-				for (int i = 0; i < elementCount; i++) {
-					elements[i] = buffer[offset++];
+	private static final int HEADER_SIZE = 18;
+	private static final int STREAM_BUFFER_SIZE = 8192;
+	private static final int PARALLEL_THRESHOLD = 512 * 512;
+	private static final int MIN_BAND_ROWS = 32;
+	private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	// pixel formats understood by the packet decoder
+	private static final int INDEXED = 0;
+	private static final int BGR24 = 2;
+	private static final int BGRA32 = 3;
+	private static final int GRAY8 = 4;
+	private static final int GRAY16 = 5;
+
+	// Row kernels, one per pixel format. Each converts count pixels starting
+	// at src[sp] and stores them at dst[dp], dst[dp + step], ... where step is
+	// 1 or -1 depending on the horizontal origin.
+
+	private static void convertIndexed(byte[] src, int sp, int[] dst, int dp, int step, int count, int[] lut) {
+		for (int end = sp + count; sp < end; sp++, dp += step) {
+			dst[dp] = lut[src[sp] & 0xFF];
+		}
+	}
+
+	private static void convertBGR24(byte[] src, int sp, int[] dst, int dp, int step, int count, int rs, int gs, int bs, int alpha) {
+		for (int end = sp + 3 * count; sp < end; sp += 3, dp += step) {
+			dst[dp] = (src[sp + 2] & 0xFF) << rs | (src[sp + 1] & 0xFF) << gs | (src[sp] & 0xFF) << bs | alpha;
+		}
+	}
+
+	private static void convertBGRA32(byte[] src, int sp, int[] dst, int dp, int step, int count, int rs, int gs, int bs, int as) {
+		for (int end = sp + 4 * count; sp < end; sp += 4, dp += step) {
+			dst[dp] = (src[sp + 2] & 0xFF) << rs | (src[sp + 1] & 0xFF) << gs | (src[sp] & 0xFF) << bs | (src[sp + 3] & 0xFF) << as;
+		}
+	}
+
+	private static void convertGray8(byte[] src, int sp, int[] dst, int dp, int step, int count, int rgb, int alpha) {
+		for (int end = sp + count; sp < end; sp++, dp += step) {
+			dst[dp] = (src[sp] & 0xFF) * rgb | alpha;
+		}
+	}
+
+	private static void convertGray16(byte[] src, int sp, int[] dst, int dp, int step, int count, int rgb, int as) {
+		for (int end = sp + 2 * count; sp < end; sp += 2, dp += step) {
+			dst[dp] = (src[sp] & 0xFF) * rgb | (src[sp + 1] & 0xFF) << as;
+		}
+	}
+
+	private TGAReader() {
+	}
+
+	/**
+	 * Reusable decoding context. Holding on to one between calls makes
+	 * repeated decodes allocation free.
+	 * <p>
+	 * {@link #open} reads the header and the colormap, after which the image
+	 * size is known and {@link #read} decodes the pixel data. Streams and
+	 * channels are consumed through a fixed size buffer, so peak memory is
+	 * the output plus a few kilobytes. They are not closed by the decoder.
+	 */
+	public static final class Decoder {
+		/**
+		 * Decode every {@code sampleSize}-th pixel in each direction, like
+		 * {@code BitmapFactory.Options.inSampleSize}. Output is rounded up.
+		 */
+		public int sampleSize = 1;
+		/** Average each sampleSize x sampleSize box instead of picking its first pixel. */
+		public boolean boxFilter;
+		/**
+		 * Decode large in-memory or mapped images in row bands on several
+		 * cores. Streams, subsampling and direct IntBuffers stay sequential.
+		 */
+		public boolean parallel = true;
+
+		// source
+		private byte[] buf;
+		private int pos;
+		private int limit;
+		private byte[] streamBuffer;
+		private ByteBuffer channelBuffer;
+		private InputStream in;
+		private ReadableByteChannel channel;
+		private ByteBuffer source;
+		private int sourcePosition;
+
+		// header
+		private int type;
+		private int width;
+		private int height;
+		private int depth;
+		private int descriptor;
+		private int colormapOrigin;
+		private int colormapLength;
+		private int colormapDepth;
+		private int colormapEntries;
+		private byte[] palette;
+		private int paletteOffset;
+		private byte[] paletteBuffer;
+		private int[] lut;
+
+		// output
+		private int format;
+		private int bytesPerPixel;
+		private int rs, gs, bs, as;
+		private int[] row;
+		private int[] sampledRow;
+		private int[] accumulator;
+		private int clipLeft, clipTop, clipRight, clipBottom;
+
+		// packet state
+		private boolean rle;
+		private boolean run;
+		private int runLength;
+		private int runColor;
+		private final int[] single = new int[1];
+
+		// parallel decoding
+		private Decoder[] bands;
+
+		public Decoder() {
+		}
+
+		public void open(byte[] buffer) throws IOException {
+			open(buffer, 0, buffer.length);
+		}
+
+		private void open(byte[] buffer, int offset, int length) throws IOException {
+			in = null;
+			channel = null;
+			source = null;
+			buf = buffer;
+			pos = offset;
+			limit = offset + length;
+			readHeader();
+		}
+
+		public void open(InputStream in) throws IOException {
+			this.in = in;
+			channel = null;
+			source = null;
+			openStream();
+		}
+
+		public void open(ReadableByteChannel channel) throws IOException {
+			in = null;
+			this.channel = channel;
+			source = null;
+			openStream();
+		}
+
+		/**
+		 * Decodes the remaining bytes of {@code buffer}, typically a
+		 * {@code FileChannel.map()} region. Direct buffers are read in place
+		 * a chunk at a time rather than copied onto the heap. The buffer
+		 * position is left untouched.
+		 */
+		public void open(ByteBuffer buffer) throws IOException {
+			if (buffer.hasArray()) {
+				open(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				return;
+			}
+			in = null;
+			channel = null;
+			source = buffer;
+			sourcePosition = buffer.position();
+			openStream();
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getOutputWidth() {
+			return (width + sampleSize - 1) / sampleSize;
+		}
+
+		public int getOutputHeight() {
+			return (height + sampleSize - 1) / sampleSize;
+		}
+
+		public void read(Order order, int[] pixels, int offset, int stride) throws IOException {
+			read(order, pixels, offset, stride, getOutputWidth(), getOutputHeight(), 0, 0);
+		}
+
+		/**
+		 * Decodes into the rectangle at ({@code x}, {@code y}) of a canvas of
+		 * {@code canvasWidth} x {@code canvasHeight} pixels, whose row {@code i}
+		 * starts at {@code pixels[offset + stride * i]}. Parts of the image
+		 * that fall outside the canvas are skipped while decoding.
+		 */
+		public void read(Order order, int[] pixels, int offset, int stride, int canvasWidth, int canvasHeight, int x, int y) throws IOException {
+			if (stride < canvasWidth || offset < 0 || offset + stride * (canvasHeight - 1) + canvasWidth > pixels.length) {
+				throw new IndexOutOfBoundsException("Pixel buffer too small for " + canvasWidth + "x" + canvasHeight);
+			}
+			try {
+				if (clip(canvasWidth, canvasHeight, x, y)) {
+					decode(order, pixels, offset + stride * y + x, stride, null);
 				}
-				int count = (packet & 0x7F) + 1;
-				for (int i = 0; i < count; i++) {
-					for (int j = 0; j < elementCount; j++) {
-						decodeBuffer[decoded++] = elements[j];
-					}
+			} finally {
+				close();
+			}
+		}
+
+		public void read(Order order, IntBuffer pixels, int offset, int stride) throws IOException {
+			read(order, pixels, offset, stride, getOutputWidth(), getOutputHeight(), 0, 0);
+		}
+
+		public void read(Order order, IntBuffer pixels, int offset, int stride, int canvasWidth, int canvasHeight, int x, int y) throws IOException {
+			if (pixels.hasArray()) {
+				read(order, pixels.array(), pixels.arrayOffset() + offset, stride, canvasWidth, canvasHeight, x, y);
+				return;
+			}
+			if (stride < canvasWidth || offset < 0 || offset + stride * (canvasHeight - 1) + canvasWidth > pixels.limit()) {
+				throw new IndexOutOfBoundsException("Pixel buffer too small for " + canvasWidth + "x" + canvasHeight);
+			}
+			int position = pixels.position();
+			try {
+				// rows are emitted into the buffer as soon as they are complete
+				if (clip(canvasWidth, canvasHeight, x, y)) {
+					decode(order, null, offset + stride * y + x, stride, pixels);
 				}
-			} else { // RAW
-				int count = (packet + 1) * elementCount;
-				for (int i = 0; i < count; i++) {
-					decodeBuffer[decoded++] = buffer[offset++];
+			} finally {
+				position(pixels, position);
+				close();
+			}
+		}
+
+		// visible part of the output image, in output coordinates
+		private boolean clip(int canvasWidth, int canvasHeight, int x, int y) {
+			clipLeft = Math.max(0, -x);
+			clipTop = Math.max(0, -y);
+			clipRight = Math.min(getOutputWidth(), canvasWidth - x);
+			clipBottom = Math.min(getOutputHeight(), canvasHeight - y);
+			return clipLeft < clipRight && clipTop < clipBottom;
+		}
+
+		private static int[] grow(int[] array, int size) {
+			return array != null && array.length >= size ? array : new int[size];
+		}
+
+		private void openStream() throws IOException {
+			if (streamBuffer == null) {
+				streamBuffer = new byte[STREAM_BUFFER_SIZE];
+				channelBuffer = ByteBuffer.wrap(streamBuffer);
+			}
+			buf = streamBuffer;
+			pos = 0;
+			limit = 0;
+			try {
+				readHeader();
+			} catch (IOException | RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		private boolean streaming() {
+			return in != null || channel != null || source != null;
+		}
+
+		private void close() {
+			if (source != null) {
+				position(source, sourcePosition);
+			}
+			in = null;
+			channel = null;
+			source = null;
+			buf = null;
+			palette = null;
+		}
+
+		// makes at least n bytes available at buf[pos]
+		private void require(int n) throws IOException {
+			if (limit - pos >= n) return;
+			if (!streaming()) {
+				throw new EOFException("Unexpected end of TGA data");
+			}
+
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+			while (limit < n) {
+				int count;
+				if (in != null) {
+					count = in.read(buf, limit, buf.length - limit);
+				} else if (channel != null) {
+					limit(channelBuffer, buf.length);
+					position(channelBuffer, limit);
+					count = channel.read(channelBuffer);
+				} else {
+					count = Math.min(source.remaining(), buf.length - limit);
+					if (count == 0) count = -1;
+					else source.get(buf, limit, count);
+				}
+				if (count < 0) {
+					throw new EOFException("Unexpected end of TGA data");
 				}
+				limit += count;
 			}
 		}
-		return decodeBuffer;
-	}
 
-	private static int[] createPixelsFromColormap(int width, int height, int depth, byte[] bytes, int offset, byte[] palette, int colormapOrigin, int descriptor, Order order) throws IOException {
-		int[] pixels;
-		int rs = order.redShift;
-		int gs = order.greenShift;
-		int bs = order.blueShift;
-		int as = order.alphaShift;
-		switch (depth) {
-			case 24:
-				pixels = new int[width * height];
-				if ((descriptor & RIGHT_ORIGIN) != 0) {
-					if ((descriptor & UPPER_ORIGIN) != 0) {
-						// UpperRight
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int colormapIndex = bytes[offset + width * i + j] &
-									0xFF - colormapOrigin;
-								int color = 0xFFFFFFFF;
-								if (colormapIndex >= 0) {
-									int index = 3 * colormapIndex + 18;
-									int b = palette[index] & 0xFF;
-									int g = palette[index + 1] & 0xFF;
-									int r = palette[index + 2] & 0xFF;
-									int a = 0xFF;
-									color = (r << rs) | (g << gs) | (b << bs) | (a << as);
-								}
-								pixels[width * i + (width - j - 1)] = color;
-							}
-						}
-					} else {
-						// LowerRight
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int colormapIndex = bytes[offset + width * i + j] &
-									0xFF - colormapOrigin;
-								int color = 0xFFFFFFFF;
-								if (colormapIndex >= 0) {
-									int index = 3 * colormapIndex + 18;
-									int b = palette[index] & 0xFF;
-									int g = palette[index + 1] & 0xFF;
-									int r = palette[index + 2] & 0xFF;
-									int a = 0xFF;
-									color = (r << rs) | (g << gs) | (b << bs) | (a << as);
-								}
-								pixels[width * (height - i - 1) + (width - j - 1)] = color;
-							}
-						}
-					}
+		private void skip(int n) throws IOException {
+			while (n > 0) {
+				int count = Math.min(n, buf.length);
+				require(count);
+				pos += count;
+				n -= count;
+			}
+		}
+
+		private void readHeader() throws IOException {
+			require(HEADER_SIZE);
+			byte[] b = buf;
+			int p = pos;
+			int idFieldLength = b[p] & 0xFF;
+			type = b[p + 2] & 0xFF;
+			colormapOrigin = (b[p + 3] & 0xFF) | (b[p + 4] & 0xFF) << 8;
+			colormapLength = (b[p + 5] & 0xFF) | (b[p + 6] & 0xFF) << 8;
+			colormapDepth = b[p + 7] & 0xFF;
+			width = (b[p + 12] & 0xFF) | (b[p + 13] & 0xFF) << 8;
+			height = (b[p + 14] & 0xFF) | (b[p + 15] & 0xFF) << 8;
+			depth = b[p + 16] & 0xFF;
+			descriptor = b[p + 17] & 0xFF;
+			pos += HEADER_SIZE;
+
+			format = checkFormat(type, depth, b[p + 1] & 0xFF, colormapLength, colormapDepth);
+			bytesPerPixel = depth / 8;
+
+			skip(idFieldLength);
+
+			int entrySize = (colormapDepth + 7) / 8;
+			int colormapSize = entrySize * colormapLength;
+			if (format == INDEXED) {
+				// 8-bit indices can't reach past entry 255
+				colormapEntries = Math.max(0, Math.min(colormapLength, 256 - colormapOrigin));
+				int paletteSize = entrySize * colormapEntries;
+				if (!streaming()) {
+					// whole file is in memory, point straight at it
+					require(colormapSize);
+					palette = buf;
+					paletteOffset = pos;
+					pos += colormapSize;
 				} else {
-					if ((descriptor & UPPER_ORIGIN) != 0) {
-						// UpperLeft
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int colormapIndex = bytes[offset + width * i + j] &
-									0xFF - colormapOrigin;
-								int color = 0xFFFFFFFF;
-								if (colormapIndex >= 0) {
-									int index = 3 * colormapIndex + 18;
-									int b = palette[index] & 0xFF;
-									int g = palette[index + 1] & 0xFF;
-									int r = palette[index + 2] & 0xFF;
-									int a = 0xFF;
-									color = (r << rs) | (g << gs) | (b << bs) | (a << as);
-								}
-								pixels[width * i + j] = color;
-							}
-						}
-					} else {
-						// LowerLeft
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int colormapIndex = bytes[offset + width * i + j] &
-									0xFF - colormapOrigin;
-								int color = 0xFFFFFFFF;
-								if (colormapIndex >= 0) {
-									int index = 3 * colormapIndex + 18;
-									int b = palette[index] & 0xFF;
-									int g = palette[index + 1] & 0xFF;
-									int r = palette[index + 2] & 0xFF;
-									int a = 0xFF;
-									color = (r << rs) | (g << gs) | (b << bs) | (a << as);
-								}
-								pixels[width * (height - i - 1) + j] = color;
-							}
-						}
+					if (paletteBuffer == null) {
+						paletteBuffer = new byte[256 * 4];
 					}
+					palette = paletteBuffer;
+					paletteOffset = 0;
+					require(paletteSize);
+					System.arraycopy(buf, pos, palette, 0, paletteSize);
+					pos += paletteSize;
+					skip(colormapSize - paletteSize);
 				}
-				break;
-			case 32:
-				pixels = new int[width * height];
-				if ((descriptor & RIGHT_ORIGIN) != 0) {
-					if ((descriptor & UPPER_ORIGIN) != 0) {
-						// UpperRight
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int colormapIndex = bytes[offset + width * i + j] &
-									0xFF - colormapOrigin;
-								int color = 0xFFFFFFFF;
-								if (colormapIndex >= 0) {
-									int index = 4 * colormapIndex + 18;
-									int b = palette[index] & 0xFF;
-									int g = palette[index + 1] & 0xFF;
-									int r = palette[index + 2] & 0xFF;
-									int a = palette[index + 3] & 0xFF;
-									color = (r << rs) | (g << gs) | (b << bs) | (a << as);
-								}
-								pixels[width * i + (width - j - 1)] = color;
-							}
-						}
-					} else {
-						// LowerRight
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int colormapIndex = bytes[offset + width * i + j] &
-									0xFF - colormapOrigin;
-								int color = 0xFFFFFFFF;
-								if (colormapIndex >= 0) {
-									int index = 4 * colormapIndex + 18;
-									int b = palette[index] & 0xFF;
-									int g = palette[index + 1] & 0xFF;
-									int r = palette[index + 2] & 0xFF;
-									int a = palette[index + 3] & 0xFF;
-									color = (r << rs) | (g << gs) | (b << bs) | (a << as);
-								}
-								pixels[width * (height - i - 1) + (width - j - 1)] = color;
-							}
-						}
-					}
+			} else {
+				skip(colormapSize);
+			}
+		}
+
+		// expands the palette once, indices then map with a single array load
+		private void buildLut() {
+			if (lut == null) {
+				lut = new int[256];
+			}
+			int entrySize = (colormapDepth + 7) / 8;
+			boolean attributeAlpha = (descriptor & 0x0F) != 0;
+			for (int v = 0; v < 256; v++) {
+				int k = v - colormapOrigin;
+				if (k < 0 || k >= colormapEntries) {
+					lut[v] = 0xFFFFFFFF;
+					continue;
+				}
+				int p = paletteOffset + entrySize * k;
+				int r, g, b, a;
+				if (entrySize == 2) {
+					int c = (palette[p] & 0xFF) | (palette[p + 1] & 0xFF) << 8;
+					r = (c >> 10) & 0x1F;
+					g = (c >> 5) & 0x1F;
+					b = c & 0x1F;
+					r = r << 3 | r >> 2;
+					g = g << 3 | g >> 2;
+					b = b << 3 | b >> 2;
+					a = !attributeAlpha || (c & 0x8000) != 0 ? 0xFF : 0;
 				} else {
-					if ((descriptor & UPPER_ORIGIN) != 0) {
-						// UpperLeft
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int colormapIndex = bytes[offset + width * i + j] &
-									0xFF - colormapOrigin;
-								int color = 0xFFFFFFFF;
-								if (colormapIndex >= 0) {
-									int index = 4 * colormapIndex + 18;
-									int b = palette[index] & 0xFF;
-									int g = palette[index + 1] & 0xFF;
-									int r = palette[index + 2] & 0xFF;
-									int a = palette[index + 3] & 0xFF;
-									color = (r << rs) | (g << gs) | (b << bs) | (a << as);
-								}
-								pixels[width * i + j] = color;
-							}
-						}
-					} else {
-						// LowerLeft
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int colormapIndex = bytes[offset + width * i + j] &
-									0xFF - colormapOrigin;
-								int color = 0xFFFFFFFF;
-								if (colormapIndex >= 0) {
-									int index = 4 * colormapIndex + 18;
-									int b = palette[index] & 0xFF;
-									int g = palette[index + 1] & 0xFF;
-									int r = palette[index + 2] & 0xFF;
-									int a = palette[index + 3] & 0xFF;
-									color = (r << rs) | (g << gs) | (b << bs) | (a << as);
-								}
-								pixels[width * (height - i - 1) + j] = color;
-							}
-						}
-					}
+					b = palette[p] & 0xFF;
+					g = palette[p + 1] & 0xFF;
+					r = palette[p + 2] & 0xFF;
+					a = entrySize == 4 ? palette[p + 3] & 0xFF : 0xFF;
 				}
-				break;
-			default:
-				throw new IOException("Unsupported depth:" + depth);
+				lut[v] = (r << rs) | (g << gs) | (b << bs) | (a << as);
+			}
 		}
-		return pixels;
-	}
 
-	private static int[] createPixelsFromRGB(int width, int height, int depth, byte[] bytes, int offset, int descriptor, Order order) throws IOException {
-		int[] pixels;
-		int rs = order.redShift;
-		int gs = order.greenShift;
-		int bs = order.blueShift;
-		int as = order.alphaShift;
-		switch (depth) {
-			case 24:
-				pixels = new int[width * height];
-				if ((descriptor & RIGHT_ORIGIN) != 0) {
-					if ((descriptor & UPPER_ORIGIN) != 0) {
-						// UpperRight
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int index = offset + 3 * width * i + 3 * j;
-								int b = bytes[index] & 0xFF;
-								int g = bytes[index + 1] & 0xFF;
-								int r = bytes[index + 2] & 0xFF;
-								int a = 0xFF;
-								pixels[width * i + (width - j - 1)] = (r << rs) |
-									(g << gs) |
-									(b << bs) |
-									(a << as);
-							}
-						}
-					} else {
-						// LowerRight
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int index = offset + 3 * width * i + 3 * j;
-								int b = bytes[index] & 0xFF;
-								int g = bytes[index + 1] & 0xFF;
-								int r = bytes[index + 2] & 0xFF;
-								int a = 0xFF;
-								pixels[width * (height - i - 1) + (width - j - 1)] = (r << rs) |
-									(g << gs) |
-									(b << bs) |
-									(a << as);
-							}
-						}
-					}
+		private void decode(Order order, int[] pixels, int offset, int stride, IntBuffer sink) throws IOException {
+			if (sampleSize < 1) {
+				throw new IllegalArgumentException("Invalid sample size: " + sampleSize);
+			}
+			rs = order.redShift;
+			gs = order.greenShift;
+			bs = order.blueShift;
+			as = order.alphaShift;
+			if (format == INDEXED) {
+				buildLut();
+			}
+
+			int bandCount = Math.min(PARALLELISM, height / MIN_BAND_ROWS);
+			if (parallel && sampleSize == 1 && sink == null && in == null && channel == null
+				&& clipLeft == 0 && clipRight == width
+				&& (long) width * height >= PARALLEL_THRESHOLD && bandCount > 1) {
+				decodeParallel(pixels, offset, stride, bandCount);
+				return;
+			}
+			decodeRows(pixels, offset, stride, sink);
+		}
+
+		// absolute offset of buf[pos] in the byte[] or ByteBuffer source
+		private int offset() {
+			return source != null ? source.position() - (limit - pos) : pos;
+		}
+
+		// Splits the image into bands of file rows. Uncompressed bands start at
+		// a computed offset; RLE data gets a cheap pre-scan that walks packet
+		// headers and records the packet state at each band boundary.
+		private void decodeParallel(int[] pixels, int offset, int stride, int bandCount) throws IOException {
+			rle = type == COLORMAP_RLE || type == RGB_RLE || type == GRAYSCALE_RLE;
+			run = false;
+			runLength = 0;
+
+			if (bands == null || bands.length < bandCount) {
+				Decoder[] grown = new Decoder[bandCount];
+				if (bands != null) {
+					System.arraycopy(bands, 0, grown, 0, bands.length);
+				}
+				bands = grown;
+			}
+
+			int rows = (height + bandCount - 1) / bandCount;
+			int dataStart = offset();
+			BandTask[] tasks = new BandTask[bandCount];
+			for (int k = 0; k < bandCount; k++) {
+				int from = k * rows;
+				int to = Math.min(height, from + rows);
+				if (bands[k] == null) {
+					bands[k] = new Decoder();
+				}
+				Decoder band = bands[k];
+				band.startBand(this, rle ? offset() : dataStart + from * width * bytesPerPixel);
+				tasks[k] = new BandTask(band, pixels, offset, stride, from, to);
+
+				if (rle && k + 1 < bandCount) {
+					readPixels(null, 0, 0, width * (to - from));
+				}
+			}
+
+			Pool.INSTANCE.invoke(new BandBatch(tasks));
+			for (BandTask task : tasks) {
+				if (task.error != null) {
+					throw task.error;
+				}
+			}
+		}
+
+		// takes over the header, output setup and current packet state of parent
+		private void startBand(Decoder parent, int sourceOffset) throws IOException {
+			type = parent.type;
+			width = parent.width;
+			height = parent.height;
+			descriptor = parent.descriptor;
+			format = parent.format;
+			bytesPerPixel = parent.bytesPerPixel;
+			rs = parent.rs;
+			gs = parent.gs;
+			bs = parent.bs;
+			as = parent.as;
+			lut = parent.lut;
+			clipTop = parent.clipTop;
+			clipBottom = parent.clipBottom;
+			rle = parent.rle;
+			run = parent.run;
+			runLength = parent.runLength;
+			runColor = parent.runColor;
+
+			in = null;
+			channel = null;
+			if (parent.source != null) {
+				if (streamBuffer == null) {
+					streamBuffer = new byte[STREAM_BUFFER_SIZE];
+				}
+				source = parent.source.duplicate();
+				sourcePosition = sourceOffset;
+				position(source, sourceOffset);
+				buf = streamBuffer;
+				pos = 0;
+				limit = 0;
+			} else {
+				source = null;
+				buf = parent.buf;
+				pos = sourceOffset;
+				limit = parent.limit;
+			}
+		}
+
+		private void decodeBand(int[] pixels, int offset, int stride, int from, int to) throws IOException {
+			boolean upper = (descriptor & UPPER_ORIGIN) != 0;
+			boolean right = (descriptor & RIGHT_ORIGIN) != 0;
+			int step = right ? -1 : 1;
+			int first = right ? width - 1 : 0;
+			for (int i = from; i < to; i++) {
+				int y = upper ? i : height - i - 1;
+				if (y < clipTop || y >= clipBottom) {
+					readPixels(null, 0, 0, width);
 				} else {
-					if ((descriptor & UPPER_ORIGIN) != 0) {
-						// UpperLeft
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int index = offset + 3 * width * i + 3 * j;
-								int b = bytes[index] & 0xFF;
-								int g = bytes[index + 1] & 0xFF;
-								int r = bytes[index + 2] & 0xFF;
-								int a = 0xFF;
-								pixels[width * i + j] = (r << rs) |
-									(g << gs) |
-									(b << bs) |
-									(a << as);
-							}
-						}
+					readPixels(pixels, offset + stride * y + first, step, width);
+				}
+			}
+		}
+
+		private void convert(byte[] src, int sp, int[] dst, int dp, int step, int count) {
+			switch (format) {
+				case INDEXED:
+					convertIndexed(src, sp, dst, dp, step, count, lut);
+					break;
+				case BGR24:
+					convertBGR24(src, sp, dst, dp, step, count, rs, gs, bs, 0xFF << as);
+					break;
+				case BGRA32:
+					convertBGRA32(src, sp, dst, dp, step, count, rs, gs, bs, as);
+					break;
+				case GRAY8:
+					convertGray8(src, sp, dst, dp, step, count, 1 << rs | 1 << gs | 1 << bs, 0xFF << as);
+					break;
+				default:
+					convertGray16(src, sp, dst, dp, step, count, 1 << rs | 1 << gs | 1 << bs, as);
+					break;
+			}
+		}
+
+		private int pixel(byte[] src, int sp) {
+			convert(src, sp, single, 0, 1, 1);
+			return single[0];
+		}
+
+		// decodes the next n pixels of raw data or RLE packets into dst, which
+		// may be null to discard them
+		private void readPixels(int[] dst, int at, int step, int n) throws IOException {
+			int bpp = bytesPerPixel;
+			while (n > 0) {
+				if (runLength == 0) {
+					if (rle) {
+						require(1);
+						int packet = buf[pos++] & 0xFF;
+						runLength = (packet & 0x7F) + 1;
+						run = (packet & 0x80) != 0;
 					} else {
-						// LowerLeft
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int index = offset + 3 * width * i + 3 * j;
-								int b = bytes[index] & 0xFF;
-								int g = bytes[index + 1] & 0xFF;
-								int r = bytes[index + 2] & 0xFF;
-								int a = 0xFF;
-								pixels[width * (height - i - 1) + j] = (r << rs) |
-									(g << gs) |
-									(b << bs) |
-									(a << as);
-							}
-						}
+						runLength = Integer.MAX_VALUE;
+					}
+					if (run) {
+						require(bpp);
+						runColor = format == INDEXED ? lut[buf[pos] & 0xFF] : pixel(buf, pos);
+						pos += bpp;
 					}
 				}
-				break;
-			case 32:
-				pixels = new int[width * height];
-				if ((descriptor & RIGHT_ORIGIN) != 0) {
-					if ((descriptor & UPPER_ORIGIN) != 0) {
-						// UpperRight
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int index = offset + 4 * width * i + 4 * j;
-								int b = bytes[index] & 0xFF;
-								int g = bytes[index + 1] & 0xFF;
-								int r = bytes[index + 2] & 0xFF;
-								int a = bytes[index + 3] & 0xFF;
-								pixels[width * i + (width - j - 1)] = (r << rs) |
-									(g << gs) |
-									(b << bs) |
-									(a << as);
-							}
-						}
-					} else {
-						// LowerRight
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int index = offset + 4 * width * i + 4 * j;
-								int b = bytes[index] & 0xFF;
-								int g = bytes[index + 1] & 0xFF;
-								int r = bytes[index + 2] & 0xFF;
-								int a = bytes[index + 3] & 0xFF;
-								pixels[width * (height - i - 1) + (width - j - 1)] = (r << rs) |
-									(g << gs) |
-									(b << bs) |
-									(a << as);
-							}
-						}
+
+				int count = Math.min(n, runLength);
+				runLength -= count;
+				n -= count;
+				if (dst == null) {
+					if (!run) skip(count * bpp);
+				} else if (run) {
+					int color = runColor;
+					for (int k = 0; k < count; k++, at += step) {
+						dst[at] = color;
 					}
 				} else {
-					if ((descriptor & UPPER_ORIGIN) != 0) {
-						// UpperLeft
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int index = offset + 4 * width * i + 4 * j;
-								int b = bytes[index] & 0xFF;
-								int g = bytes[index + 1] & 0xFF;
-								int r = bytes[index + 2] & 0xFF;
-								int a = bytes[index + 3] & 0xFF;
-								pixels[width * i + j] = (r << rs) |
-									(g << gs) |
-									(b << bs) |
-									(a << as);
-							}
-						}
-					} else {
-						// LowerLeft
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int index = offset + 4 * width * i + 4 * j;
-								int b = bytes[index] & 0xFF;
-								int g = bytes[index + 1] & 0xFF;
-								int r = bytes[index + 2] & 0xFF;
-								int a = bytes[index + 3] & 0xFF;
-								pixels[width * (height - i - 1) + j] = (r << rs) |
-									(g << gs) |
-									(b << bs) |
-									(a << as);
-							}
+					// convert whatever is buffered in one go, that's the whole
+					// row when decoding from memory
+					if (limit - pos >= count * bpp) {
+						convert(buf, pos, dst, at, step, count);
+						pos += count * bpp;
+						at += count * step;
+						continue;
+					}
+					while (count > 0) {
+						int available = (limit - pos) / bpp;
+						if (available == 0) {
+							require(bpp);
+							available = (limit - pos) / bpp;
 						}
+						int chunk = Math.min(count, available);
+						convert(buf, pos, dst, at, step, chunk);
+						pos += chunk * bpp;
+						at += chunk * step;
+						count -= chunk;
 					}
 				}
-				break;
-			default:
-				throw new IOException("Unsupported depth:" + depth);
+			}
 		}
-		return pixels;
-	}
 
-	private static int[] createPixelsFromGrayscale(int width, int height, int depth, byte[] bytes, int offset, int descriptor, Order order) throws IOException {
-		int[] pixels;
-		int rs = order.redShift;
-		int gs = order.greenShift;
-		int bs = order.blueShift;
-		int as = order.alphaShift;
-		switch (depth) {
-			case 8:
-				pixels = new int[width * height];
-				if ((descriptor & RIGHT_ORIGIN) != 0) {
-					if ((descriptor & UPPER_ORIGIN) != 0) {
-						// UpperRight
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int e = bytes[offset + width * i + j] & 0xFF;
-								int a = 0xFF;
-								pixels[width * i + (width - j - 1)] = (e << rs) |
-									(e << gs) |
-									(e << bs) |
-									(a << as);
-							}
-						}
-					} else {
-						// LowerRight
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int e = bytes[offset + width * i + j] & 0xFF;
-								int a = 0xFF;
-								pixels[width * (height - i - 1) + (width - j - 1)] = (e << rs) |
-									(e << gs) |
-									(e << bs) |
-									(a << as);
-							}
-						}
-					}
+		// decodes row by row in file order; rows go straight into pixels when
+		// possible, else through the row buffer and get sampled, clipped or
+		// flushed to sink
+		private void decodeRows(int[] pixels, int offset, int stride, IntBuffer sink) throws IOException {
+			rle = type == COLORMAP_RLE || type == RGB_RLE || type == GRAYSCALE_RLE;
+			run = false;
+			runLength = 0;
+
+			boolean upper = (descriptor & UPPER_ORIGIN) != 0;
+			boolean right = (descriptor & RIGHT_ORIGIN) != 0;
+			int step = right ? -1 : 1;
+			int first = right ? width - 1 : 0;
+			int s = sampleSize;
+			int outWidth = getOutputWidth();
+
+			if (s == 1 && sink == null && clipLeft == 0 && clipRight == width) {
+				decodeBand(pixels, offset, stride, 0, height);
+				return;
+			}
+
+			row = grow(row, width);
+			sampledRow = grow(sampledRow, outWidth);
+			int[] line = row;
+			int[] out = s == 1 ? row : sampledRow;
+			if (boxFilter && s > 1) {
+				accumulator = grow(accumulator, outWidth * 4);
+				Arrays.fill(accumulator, 0, outWidth * 4, 0);
+			}
+
+			for (int i = 0; i < height; i++) {
+				int y = upper ? i : height - i - 1;
+				int outY = y / s;
+
+				if (outY < clipTop || outY >= clipBottom) {
+					readPixels(null, 0, 0, width);
+					continue;
+				}
+
+				if (s == 1) {
+					readPixels(line, first, step, width);
+				} else if (boxFilter) {
+					readPixels(line, first, step, width);
+					accumulate(line, outWidth);
+					boolean last = upper ? (y % s == s - 1 || y == height - 1) : y % s == 0;
+					if (!last) continue;
+					resolve(out, 0, outWidth, Math.min(s, height - outY * s));
 				} else {
-					if ((descriptor & UPPER_ORIGIN) != 0) {
-						// UpperLeft
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int e = bytes[offset + width * i + j] & 0xFF;
-								int a = 0xFF;
-								pixels[width * i + j] = (e << rs) |
-									(e << gs) |
-									(e << bs) |
-									(a << as);
-							}
-						}
-					} else {
-						// LowerLeft
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int e = bytes[offset + width * i + j] & 0xFF;
-								int a = 0xFF;
-								pixels[width * (height - i - 1) + j] = (e << rs) |
-									(e << gs) |
-									(e << bs) |
-									(a << as);
-							}
-						}
+					if (y % s != 0) {
+						readPixels(null, 0, 0, width);
+						continue;
 					}
-				}
-				break;
-			case 16:
-				pixels = new int[width * height];
-				if ((descriptor & RIGHT_ORIGIN) != 0) {
-					if ((descriptor & UPPER_ORIGIN) != 0) {
-						// UpperRight
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int e = bytes[offset + 2 * width * i + 2 * j] & 0xFF;
-								int a = bytes[offset + 2 * width * i + 2 * j + 1] & 0xFF;
-								pixels[width * i + (width - j - 1)] = (e << rs) |
-									(e << gs) |
-									(e << bs) |
-									(a << as);
-							}
-						}
-					} else {
-						// LowerRight
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int e = bytes[offset + 2 * width * i + 2 * j] & 0xFF;
-								int a = bytes[offset + 2 * width * i + 2 * j + 1] & 0xFF;
-								pixels[width * (height - i - 1) + (width - j - 1)] = (e << rs) |
-									(e << gs) |
-									(e << bs) |
-									(a << as);
-							}
-						}
+					readPixels(line, first, step, width);
+					for (int x = 0; x < outWidth; x++) {
+						out[x] = line[x * s];
 					}
+				}
+
+				int at = offset + stride * outY + clipLeft;
+				if (sink != null) {
+					position(sink, at);
+					sink.put(out, clipLeft, clipRight - clipLeft);
 				} else {
-					if ((descriptor & UPPER_ORIGIN) != 0) {
-						// UpperLeft
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int e = bytes[offset + 2 * width * i + 2 * j] & 0xFF;
-								int a = bytes[offset + 2 * width * i + 2 * j + 1] & 0xFF;
-								pixels[width * i + j] = (e << rs) |
-									(e << gs) |
-									(e << bs) |
-									(a << as);
-							}
-						}
-					} else {
-						// LowerLeft
-						for (int i = 0; i < height; i++) {
-							for (int j = 0; j < width; j++) {
-								int e = bytes[offset + 2 * width * i + 2 * j] & 0xFF;
-								int a = bytes[offset + 2 * width * i + 2 * j + 1] & 0xFF;
-								pixels[width * (height - i - 1) + j] = (e << rs) |
-									(e << gs) |
-									(e << bs) |
-									(a << as);
-							}
-						}
-					}
+					System.arraycopy(out, clipLeft, pixels, at, clipRight - clipLeft);
 				}
-				break;
-			default:
-				throw new IOException("Unsupported depth:" + depth);
+			}
+		}
+
+		private void accumulate(int[] line, int outWidth) {
+			int s = sampleSize;
+			int[] acc = accumulator;
+			for (int x = 0, k = 0; x < outWidth; x++, k += 4) {
+				int end = Math.min(x * s + s, width);
+				int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+				for (int j = x * s; j < end; j++) {
+					int c = line[j];
+					c0 += c >>> 24;
+					c1 += (c >>> 16) & 0xFF;
+					c2 += (c >>> 8) & 0xFF;
+					c3 += c & 0xFF;
+				}
+				acc[k] += c0;
+				acc[k + 1] += c1;
+				acc[k + 2] += c2;
+				acc[k + 3] += c3;
+			}
+		}
+
+		private void resolve(int[] out, int at, int outWidth, int rows) {
+			int s = sampleSize;
+			int[] acc = accumulator;
+			for (int x = 0, k = 0; x < outWidth; x++, k += 4) {
+				int n = rows * (Math.min(x * s + s, width) - x * s);
+				int half = n / 2;
+				out[at + x] = ((acc[k] + half) / n) << 24 | ((acc[k + 1] + half) / n) << 16 |
+					((acc[k + 2] + half) / n) << 8 | ((acc[k + 3] + half) / n);
+				acc[k] = acc[k + 1] = acc[k + 2] = acc[k + 3] = 0;
+			}
 		}
-		return pixels;
 	}
 
-	private TGAReader() {
+	private static final class BandTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Decoder decoder;
+		private final int[] pixels;
+		private final int offset;
+		private final int stride;
+		private final int from;
+		private final int to;
+		private IOException error;
+
+		BandTask(Decoder decoder, int[] pixels, int offset, int stride, int from, int to) {
+			this.decoder = decoder;
+			this.pixels = pixels;
+			this.offset = offset;
+			this.stride = stride;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				decoder.decodeBand(pixels, offset, stride, from, to);
+			} catch (IOException e) {
+				error = e;
+			} finally {
+				decoder.close();
+				decoder.lut = null;
+			}
+		}
+	}
+
+	private static final class BandBatch extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final BandTask[] tasks;
+
+		BandBatch(BandTask[] tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(tasks);
+		}
+	}
+
+	// ForkJoinPool.commonPool() needs API 24, keep a lazily created one instead
+	private static final class Pool {
+		static final ForkJoinPool INSTANCE = new ForkJoinPool(PARALLELISM);
+	}
+
+	/** Immutable TGA header, see {@link #probe}. */
+	public static final class Info {
+		private final int type;
+		private final int width;
+		private final int height;
+		private final int depth;
+		private final int descriptor;
+		private final int idLength;
+		private final int colormapOrigin;
+		private final int colormapLength;
+		private final int colormapDepth;
+
+		Info(byte[] b, int p, long length) throws IOException {
+			idLength = b[p] & 0xFF;
+			type = b[p + 2] & 0xFF;
+			colormapOrigin = (b[p + 3] & 0xFF) | (b[p + 4] & 0xFF) << 8;
+			colormapLength = (b[p + 5] & 0xFF) | (b[p + 6] & 0xFF) << 8;
+			colormapDepth = b[p + 7] & 0xFF;
+			width = (b[p + 12] & 0xFF) | (b[p + 13] & 0xFF) << 8;
+			height = (b[p + 14] & 0xFF) | (b[p + 15] & 0xFF) << 8;
+			depth = b[p + 16] & 0xFF;
+			descriptor = b[p + 17] & 0xFF;
+
+			checkFormat(type, depth, b[p + 1] & 0xFF, colormapLength, colormapDepth);
+			if (width == 0 || height == 0) {
+				throw new IOException("Empty image: " + width + "x" + height);
+			}
+			if (length >= 0 && length < getMinimumSize()) {
+				throw new EOFException("Truncated TGA: " + length + " bytes, at least " + getMinimumSize() + " expected");
+			}
+		}
+
+		public int getType() {
+			return type;
+		}
+
+		public boolean isCompressed() {
+			return type == COLORMAP_RLE || type == RGB_RLE || type == GRAYSCALE_RLE;
+		}
+
+		public boolean isColormapped() {
+			return type == COLORMAP || type == COLORMAP_RLE;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		public boolean isUpperOrigin() {
+			return (descriptor & UPPER_ORIGIN) != 0;
+		}
+
+		public boolean isRightOrigin() {
+			return (descriptor & RIGHT_ORIGIN) != 0;
+		}
+
+		public int getAlphaBits() {
+			return descriptor & 0x0F;
+		}
+
+		public int getIdLength() {
+			return idLength;
+		}
+
+		public int getColormapOrigin() {
+			return colormapOrigin;
+		}
+
+		public int getColormapLength() {
+			return colormapLength;
+		}
+
+		public int getColormapDepth() {
+			return colormapDepth;
+		}
+
+		/** Offset of the pixel data, past the header, ID field and colormap. */
+		public int getDataOffset() {
+			return HEADER_SIZE + idLength + ((colormapDepth + 7) / 8) * colormapLength;
+		}
+
+		/** Size of the decoded pixel data, which is also its stored size when uncompressed. */
+		public long getDataSize() {
+			return (long) width * height * (depth / 8);
+		}
+
+		/** Smallest file that can hold the image, assuming the best possible RLE packing. */
+		public long getMinimumSize() {
+			if (!isCompressed()) {
+				return getDataOffset() + getDataSize();
+			}
+			long packets = ((long) width * height + 127) / 128;
+			return getDataOffset() + packets * (1 + depth / 8);
+		}
 	}
 
 	public static final class Order {
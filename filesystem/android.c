@@ -24,6 +24,7 @@ GNU General Public License for more details.
 #include <errno.h>
 #include <stddef.h>
 #include <stdint.h>
+#include <stdlib.h>
 #include "filesystem_internal.h"
 #include "crtlib.h"
 #include "xash3d_mathlib.h"
@@ -40,6 +41,11 @@ struct android_assets_s
 	qboolean engine;
 	AAssetManager *asset_manager;
 	AAssetDir *dir;
+
+	// every asset path, sorted, directories end with a slash
+	// fetched once, so searching doesn't cross JNI for each directory
+	stringlist_t tree;
+	qboolean has_tree;
 };
 
 struct jni_methods_s
@@ -50,6 +56,7 @@ struct jni_methods_s
 	jmethodID getPackageName;
 	jmethodID getCallingPackage;
 	jmethodID getAssetsList;
+	jmethodID getAssetsTree;
 	jmethodID getAssets;
 } jni;
 
@@ -104,11 +111,124 @@ static void Android_ListDirectory( stringlist_t *list, const char *path, qboolea
 	(*jni.env)->DeleteLocalRef( jni.env, JStr );
 }
 
+static int Android_CompareStrings( const void *a, const void *b )
+{
+	return Q_strcmp( *(const char **)a, *(const char **)b );
+}
+
+static void Android_LoadTree( android_assets_t *assets )
+{
+	jstring JStr;
+	jobjectArray JNIArray;
+
+	if( !jni.getAssetsTree )
+		return;
+
+	JStr = (*jni.env)->NewStringUTF( jni.env, "" );
+	JNIArray = (*jni.env)->CallObjectMethod( jni.env, jni.activity, jni.getAssetsTree, assets->engine, JStr );
+	(*jni.env)->DeleteLocalRef( jni.env, JStr );
+
+	// a pending exception breaks every following JNI call, keep the tree empty
+	// and let lookups go to the asset manager directly
+	if( (*jni.env)->ExceptionCheck( jni.env ))
+	{
+		(*jni.env)->ExceptionClear( jni.env );
+		Con_Reportf( S_WARN "%s: unable to index assets of %s\n", __func__, Android_GetPackageName( assets->engine ));
+		if( JNIArray )
+			(*jni.env)->DeleteLocalRef( jni.env, JNIArray );
+		return;
+	}
+
+	if( !JNIArray )
+		return;
+
+	stringlistinit( &assets->tree );
+
+	for( int i = 0, size = (*jni.env)->GetArrayLength( jni.env, JNIArray ); i < size; i++ )
+	{
+		jstring JNIStr = (*jni.env)->GetObjectArrayElement( jni.env, JNIArray, i );
+		const char *CStr = (*jni.env)->GetStringUTFChars( jni.env, JNIStr, NULL );
+
+		if( !CStr )
+		{
+			// out of memory, an incomplete tree would hide assets
+			(*jni.env)->ExceptionClear( jni.env );
+			(*jni.env)->DeleteLocalRef( jni.env, JNIStr );
+			(*jni.env)->DeleteLocalRef( jni.env, JNIArray );
+			stringlistfreecontents( &assets->tree );
+			return;
+		}
+
+		stringlistappend( &assets->tree, CStr );
+		(*jni.env)->ReleaseStringUTFChars( jni.env, JNIStr, CStr );
+		(*jni.env)->DeleteLocalRef( jni.env, JNIStr );
+	}
+
+	(*jni.env)->DeleteLocalRef( jni.env, JNIArray );
+
+	// stringlistsort is quadratic, asset trees can be large
+	if( assets->tree.numstrings > 1 )
+		qsort( assets->tree.strings, assets->tree.numstrings, sizeof( *assets->tree.strings ), Android_CompareStrings );
+
+	assets->has_tree = true;
+}
+
+// index of the first tree entry not less than path
+static int Android_LowerBound( const android_assets_t *assets, const char *path )
+{
+	int lo = 0, hi = assets->tree.numstrings;
+
+	while( lo < hi )
+	{
+		int mid = lo + ( hi - lo ) / 2;
+
+		if( Q_strcmp( assets->tree.strings[mid], path ) < 0 )
+			lo = mid + 1;
+		else hi = mid;
+	}
+
+	return lo;
+}
+
+static void Android_ListTree( stringlist_t *list, const android_assets_t *assets, const char *path )
+{
+	size_t len = Q_strlen( path );
+
+	for( int i = Android_LowerBound( assets, path ); i < assets->tree.numstrings; i++ )
+	{
+		const char *entry = assets->tree.strings[i];
+		const char *name = entry + len;
+		const char *slash;
+
+		if( Q_strncmp( entry, path, len ))
+			break;
+
+		slash = Q_strchr( name, '/' );
+
+		// only direct children, directories are listed without their slash
+		if( !slash )
+		{
+			if( *name )
+				stringlistappend( list, name );
+		}
+		else if( slash[1] == '\0' && slash != name )
+		{
+			string dirname;
+
+			Q_strncpy( dirname, name, Q_min( sizeof( dirname ), (size_t)( slash - name ) + 1 ));
+			stringlistappend( list, dirname );
+		}
+	}
+}
+
 static void FS_CloseAndroidAssets( android_assets_t *assets )
 {
 	if( assets->dir )
 		AAssetDir_close( assets->dir );
 
+	if( assets->has_tree )
+		stringlistfreecontents( &assets->tree );
+
 	Mem_Free( assets );
 }
 
@@ -134,6 +254,8 @@ static android_assets_t *FS_LoadAndroidAssets( qboolean engine )
 		return NULL;
 	}
 
+	Android_LoadTree( assets );
+
 	return assets;
 }
 
@@ -154,7 +276,24 @@ static int FS_FileTime_AndroidAssets( searchpath_t *search, const char *filename
 
 static int FS_FindFile_AndroidAssets( struct searchpath_s *search, const char *path, char *fixedname, size_t len )
 {
-	AAsset *assets = AAssetManager_open( search->assets->asset_manager, path, AASSET_MODE_UNKNOWN );
+	AAsset *assets;
+
+	if( search->assets->has_tree )
+	{
+		const android_assets_t *tree = search->assets;
+		int i = Android_LowerBound( tree, path );
+
+		// directories end with a slash, so they never match here
+		if( i < tree->tree.numstrings && !Q_strcmp( tree->tree.strings[i], path ))
+		{
+			Q_strncpy( fixedname, path, len );
+			return 0;
+		}
+
+		return -1;
+	}
+
+	assets = AAssetManager_open( search->assets->asset_manager, path, AASSET_MODE_UNKNOWN );
 
 	if( assets )
 	{
@@ -199,7 +338,9 @@ static void FS_Search_AndroidAssets( searchpath_t *search, stringlist_t *list, c
 	basepath[basepathlength] = '\0';
 
 	stringlistinit( &dirlist );
-	Android_ListDirectory( &dirlist, basepath, search->assets->engine );
+	if( search->assets->has_tree )
+		Android_ListTree( &dirlist, search->assets, basepath );
+	else Android_ListDirectory( &dirlist, basepath, search->assets->engine );
 
 	Q_strncpy( temp, basepath, sizeof( temp ));
 
@@ -342,6 +483,11 @@ void FS_InitAndroid( void )
 	jni.getPackageName = (*jni.env)->GetMethodID( jni.env, jni.activity_class, "getPackageName", "()Ljava/lang/String;" );
 	jni.getCallingPackage = (*jni.env)->GetMethodID( jni.env, jni.activity_class, "getCallingPackage", "()Ljava/lang/String;" );
 	jni.getAssetsList = (*jni.env)->GetMethodID( jni.env, jni.activity_class, "getAssetsList", "(ZLjava/lang/String;)[Ljava/lang/String;" );
+	jni.getAssetsTree = (*jni.env)->GetMethodID( jni.env, jni.activity_class, "getAssetsTree", "(ZLjava/lang/String;)[Ljava/lang/String;" );
+
+	// optional, older activities only list one directory at a time
+	if( !jni.getAssetsTree )
+		(*jni.env)->ExceptionClear( jni.env );
 	jni.getAssets = (*jni.env)->GetMethodID( jni.env, jni.activity_class, "getAssets", "(Z)Landroid/content/res/AssetManager;" );
 
 	if( !jni.getPackageName || !jni.getCallingPackage || !jni.getAssetsList || !jni.getAssets )